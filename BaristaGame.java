@@ -1,5 +1,28 @@
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * BARISTA MILK TEA SIMULATOR (Fixed Layout Edition)
@@ -11,6 +34,10 @@ public class BaristaGame {
 
     public static void main(String[] args) {
         try {
+            if (args.length > 0) {
+                StorageTools.run(args);
+                return;
+            }
             GameManager gameManager = new GameManager();
             gameManager.start();
         } catch (Exception e) {
@@ -23,7 +50,38 @@ public class BaristaGame {
     //            RENDER SYSTEM (THE BOX)
     // ==========================================
     
-    static class RenderSystem {
+    /**
+     * What the view classes draw through. RenderSystem drives the real terminal, HeadlessRenderer
+     * and CapturingRenderer let the game logic run without one (load tests, soak tests, unit tests).
+     * -Dbarista.renderer=console|headless|measure picks the implementation (default console).
+     */
+    interface Renderer {
+        void drawFrame(List<String> content, String prompt);
+        /** Same as drawFrame for content that never changes; implementations may memoize it. */
+        void drawStaticFrame(List<String> content, String prompt);
+        /** Drops every memoized static frame, e.g. after the screens' text was changed. */
+        void invalidateFrameCache();
+        /** Drops the memoized static frame for this content, if any. */
+        void invalidateFrame(List<String> content);
+        /** Shows one frame of a precompiled animation; frames must be played in order from 0. */
+        void playAnimationFrame(CompiledAnimation animation, int frame);
+        /** Re-shows the input marker after rejected input. */
+        void showInputMarker();
+        void clearScreen();
+        long getFramesDrawn();
+        long getBytesWritten();
+        /** Frames and bytes since the previous report, then starts counting the next day. */
+        String closeDayReport();
+
+        static Renderer create() {
+            String mode = System.getProperty("barista.renderer", "console");
+            if (mode.equalsIgnoreCase("headless")) return new HeadlessRenderer(false);
+            if (mode.equalsIgnoreCase("measure")) return new HeadlessRenderer(true);
+            return RenderSystem.console();
+        }
+    }
+
+    static class RenderSystem implements Renderer {
         private static final int WIDTH = 100; // Reduced to 100 to prevent terminal wrapping
         private static final int HEIGHT = 30; // Fixed height
         
@@ -35,663 +93,4579 @@ public class BaristaGame {
         private static final String HORIZONTAL = "═";
         private static final String VERTICAL = "║";
 
-        public void drawFrame(List<String> rawContent, String prompt) {
-            clearScreen();
-            
-            // 1. Process content (Word Wrap)
-            List<String> processedContent = new ArrayList<>();
-            for (String line : rawContent) {
-                if (line.length() > WIDTH - 4) {
-                    processedContent.addAll(wrapText(line, WIDTH - 4));
-                } else {
-                    processedContent.add(line);
+        // -Dbarista.legacyRender=true switches back to the per-character PrintStream path
+        // -Dbarista.renderStats=true adds frames/bytes written to each daily summary
+        private static final boolean LEGACY_OUTPUT = Boolean.getBoolean("barista.legacyRender");
+        static final boolean REPORT_STATS = Boolean.getBoolean("barista.renderStats");
+
+        // Front buffer = what the terminal currently shows, back buffer = frame being composed
+        private char[][] frontBuffer = new char[HEIGHT][WIDTH];
+        private char[][] backBuffer = new char[HEIGHT][WIDTH];
+        private boolean frontValid = false;
+        // Per back-buffer row: the wrapped line placed on it (-1 for border/blank rows) and its left padding
+        private final int[] backLine = new int[HEIGHT];
+        private final int[] backPadding = new int[HEIGHT];
+        private final LineBuffer lines = new LineBuffer();
+        private final TerminalCapabilities terminal;
+        private final boolean ansi;
+
+        // Whole frames are assembled here and flushed with one write on a raw, non-autoflushing stream
+        private final FrameComposer composer = new FrameComposer(HEIGHT * (WIDTH * 3 + 16) + 256);
+        private final CountingOutputStream out;
+        // Legacy path keeps System.out's shape (small buffer, autoflush, console charset) but is counted too
+        private final CountingOutputStream legacyBytes;
+        private final PrintStream legacyOut;
+
+        // Output accounting for the per-day report
+        private long framesDrawn;
+        private long dayStartFrames;
+        private long dayStartBytes;
+
+        // The terminal has one screen, so every view drawing to stdout must share one front buffer
+        private static RenderSystem console;
+
+        public static synchronized RenderSystem console() {
+            if (console == null) console = new RenderSystem(new FileOutputStream(FileDescriptor.out), System.out, TerminalCapabilities.detect());
+            return console;
+        }
+
+        public RenderSystem(OutputStream sink, TerminalCapabilities terminal) { this(sink, sink, terminal); }
+
+        /** Frames are written to sink, and the legacy path's output to legacySink (System.out on the console). */
+        public RenderSystem(OutputStream sink, OutputStream legacySink, TerminalCapabilities terminal) {
+            this.terminal = terminal;
+            this.ansi = terminal.supportsAnsi();
+            this.out = new CountingOutputStream(sink);
+            this.legacyBytes = new CountingOutputStream(legacySink);
+            this.legacyOut = new PrintStream(new BufferedOutputStream(legacyBytes, 128), true, terminal.charset());
+        }
+
+        // Fully composed frames for screens whose content never changes
+        private final FrameCache frameCache = new FrameCache(Integer.getInteger("barista.frameCacheSize", 32));
+
+        /**
+         * Draws a screen built from constant content. The composed frame is memoized, so repeat
+         * visits skip wrapping, padding and encoding and become a single buffer write.
+         */
+        @Override
+        public void drawStaticFrame(List<String> rawContent, String prompt) {
+            if (LEGACY_OUTPUT) {
+                drawFrame(rawContent, prompt);
+                return;
+            }
+            FrameCache.CachedFrame frame = frameCache.get(rawContent, prompt);
+            if (frame == null) {
+                frame = buildCachedFrame(rawContent, prompt);
+                if (frame == null) {
+                    drawFrame(rawContent, prompt); // Taller than the box, not cacheable
+                    return;
+                }
+                frameCache.put(rawContent, prompt, frame);
+            }
+
+            composer.reset();
+            if (!ansi) {
+                composer.append(clearSequence()).append(frame.fullFrame);
+                frontValid = false;
+            } else {
+                if (!frontValid) composer.append(GlyphCache.CLEAR_AND_HOME);
+                for (int row = 0; row < HEIGHT; row++) {
+                    if (frontValid && Arrays.equals(frontBuffer[row], frame.grid[row])) continue;
+                    composer.append(GlyphCache.CURSOR_TO_ROW[row]).append(frame.rows[row]);
                 }
+                composer.append(GlyphCache.CURSOR_TO_ROW[HEIGHT]).append(GlyphCache.ERASE_BELOW).append(frame.prompt);
+                for (int row = 0; row < HEIGHT; row++) System.arraycopy(frame.grid[row], 0, frontBuffer[row], 0, WIDTH);
+                frontValid = true;
+            }
+            flushFrame();
+        }
+
+        @Override public void invalidateFrameCache() { frameCache.clear(); }
+        @Override public void invalidateFrame(List<String> rawContent) { frameCache.remove(rawContent); }
+
+        @Override
+        public void drawFrame(List<String> rawContent, String prompt) {
+            int paddingTop = layout(rawContent);
+            int paddingBottom = Math.max(0, HEIGHT - 2 - lines.size()) - paddingTop;
+
+            if (LEGACY_OUTPUT) {
+                drawFullFrame(paddingTop, paddingBottom, prompt);
+                frontValid = false;
+                return;
+            }
+
+            composer.reset();
+            if (!ansi || lines.size() > HEIGHT - 2) {
+                // Dumb terminals (and frames taller than the box) get a full redraw
+                composeFullFrame(paddingTop, paddingBottom);
+                frontValid = false;
+            } else {
+                composeBackBuffer(paddingTop);
+                composeChangedRows();
             }
+            composePrompt(prompt);
+            flushFrame();
+        }
+
+        // 1. Process content (Word Wrap) into reusable line slices, returns the top padding
+        private int layout(List<String> rawContent) {
+            lines.clear();
+            for (int i = 0; i < rawContent.size(); i++) lines.wrap(rawContent.get(i), WIDTH - 4);
             
             // 2. Calculate Vertical Padding
-            // We reserve 3 lines at the bottom for the input area if a prompt exists
-            int contentAreaHeight = HEIGHT - 2; 
-            int contentHeight = processedContent.size();
-            
             // Center the content vertically within the available space
-            int totalPadding = Math.max(0, contentAreaHeight - contentHeight);
-            int paddingTop = totalPadding / 2;
-            int paddingBottom = totalPadding - paddingTop;
+            int contentAreaHeight = HEIGHT - 2; 
+            int totalPadding = Math.max(0, contentAreaHeight - lines.size());
+            return totalPadding / 2;
+        }
+
+        private void composePrompt(String prompt) {
+            if (prompt != null && !prompt.isEmpty()) {
+                composer.append(prompt).append('\n').append("> ");
+            }
+        }
+
+        private FrameCache.CachedFrame buildCachedFrame(List<String> rawContent, String prompt) {
+            int paddingTop = layout(rawContent);
+            if (lines.size() > HEIGHT - 2) return null;
+            composeBackBuffer(paddingTop);
+
+            FrameCache.CachedFrame frame = new FrameCache.CachedFrame(HEIGHT);
+            for (int row = 0; row < HEIGHT; row++) {
+                frame.grid[row] = backBuffer[row].clone();
+                composer.reset();
+                composeBufferedRow(row);
+                frame.rows[row] = composer.toByteArray();
+            }
+            composer.reset();
+            composePrompt(prompt);
+            frame.prompt = composer.toByteArray();
+
+            composer.reset();
+            for (int row = 0; row < HEIGHT; row++) composer.append(frame.rows[row]).append('\n');
+            composer.append(frame.prompt);
+            frame.fullFrame = composer.toByteArray();
+            return frame;
+        }
+
+        // 3. Emit only the rows that differ from the front buffer, then rewrite the prompt area
+        private void composeChangedRows() {
+            if (!frontValid) composer.append(GlyphCache.CLEAR_AND_HOME);
+            for (int row = 0; row < HEIGHT; row++) {
+                if (frontValid && Arrays.equals(frontBuffer[row], backBuffer[row])) continue;
+                composer.append(GlyphCache.CURSOR_TO_ROW[row]);
+                composeBufferedRow(row);
+            }
+            composer.append(GlyphCache.CURSOR_TO_ROW[HEIGHT]).append(GlyphCache.ERASE_BELOW);
+
+            char[][] shown = backBuffer;
+            backBuffer = frontBuffer;
+            frontBuffer = shown;
+            frontValid = true;
+        }
+
+        private void composeBufferedRow(int row) {
+            if (row == 0) composer.append(GlyphCache.TOP_ROW);
+            else if (row == HEIGHT - 1) composer.append(GlyphCache.BOTTOM_ROW);
+            else if (backLine[row] < 0) composer.append(GlyphCache.BLANK_ROW);
+            else composeRow(backLine[row], backPadding[row]);
+        }
+
+        private void composeFullFrame(int paddingTop, int paddingBottom) {
+            composer.append(clearSequence());
+            composer.append(GlyphCache.TOP_ROW).append('\n');
+            for (int i = 0; i < paddingTop; i++) composer.append(GlyphCache.BLANK_ROW).append('\n');
+            for (int line = 0; line < lines.size(); line++) {
+                composeRow(line, (WIDTH - 2 - lines.length(line)) / 2);
+                composer.append('\n');
+            }
+            for (int i = 0; i < paddingBottom; i++) composer.append(GlyphCache.BLANK_ROW).append('\n');
+            composer.append(GlyphCache.BOTTOM_ROW).append('\n');
+        }
+
+        // A content row is border + cached padding run + text + cached padding run + border
+        private void composeRow(int line, int padding) {
+            int rightPadding = WIDTH - 2 - lines.length(line) - padding;
+            composer.append(GlyphCache.VERTICAL)
+                    .append(GlyphCache.PADDING[padding])
+                    .append(lines.source(line), lines.start(line), lines.end(line))
+                    .append(GlyphCache.PADDING[rightPadding])
+                    .append(GlyphCache.VERTICAL);
+        }
+
+        // Cursor-home + erase-in-display where supported, otherwise scroll the old frame away
+        private byte[] clearSequence() {
+            return ansi ? GlyphCache.CLEAR_AND_HOME : GlyphCache.SCROLL_CLEAR;
+        }
+
+        private void flushFrame() {
+            framesDrawn++;
+            try {
+                composer.writeTo(out, terminal.charset());
+            } catch (IOException e) {
+                frontValid = false;
+            }
+        }
+
+        private void drawFullFrame(int paddingTop, int paddingBottom, String prompt) {
+            framesDrawn++;
+            clearScreen();
 
-            // 3. Draw Top Border
-            System.out.print(TOP_LEFT);
-            for (int i = 0; i < WIDTH - 2; i++) System.out.print(HORIZONTAL);
-            System.out.println(TOP_RIGHT);
+            // 1. Draw Top Border
+            legacyOut.print(TOP_LEFT);
+            for (int i = 0; i < WIDTH - 2; i++) legacyOut.print(HORIZONTAL);
+            legacyOut.println(TOP_RIGHT);
 
-            // 4. Draw Content Area
+            // 2. Draw Content Area
             // Top Padding
             for (int i = 0; i < paddingTop; i++) printEmptyLine();
 
             // Content
-            for (String line : processedContent) printCenteredLine(line);
+            for (int line = 0; line < lines.size(); line++) printCenteredLine(lines.source(line), lines.start(line), lines.end(line));
             
             // Bottom Padding
             for (int i = 0; i < paddingBottom; i++) printEmptyLine();
             
-            // 5. Draw Bottom Border
-            System.out.print(BOTTOM_LEFT);
-            for (int i = 0; i < WIDTH - 2; i++) System.out.print(HORIZONTAL);
-            System.out.println(BOTTOM_RIGHT);
+            // 3. Draw Bottom Border
+            legacyOut.print(BOTTOM_LEFT);
+            for (int i = 0; i < WIDTH - 2; i++) legacyOut.print(HORIZONTAL);
+            legacyOut.println(BOTTOM_RIGHT);
             
-            // 6. Draw Prompt Below
+            // 4. Draw Prompt Below
             if (prompt != null && !prompt.isEmpty()) {
-                System.out.println(prompt);
-                System.out.print("> ");
+                legacyOut.println(prompt);
+                legacyOut.print("> ");
+            }
+        }
+
+        private void composeBackBuffer(int paddingTop) {
+            System.arraycopy(GlyphCache.TOP_ROW_CHARS, 0, backBuffer[0], 0, WIDTH);
+            for (int row = 1; row < HEIGHT - 1; row++) {
+                System.arraycopy(GlyphCache.BLANK_ROW_CHARS, 0, backBuffer[row], 0, WIDTH);
+                backLine[row] = -1;
+            }
+            System.arraycopy(GlyphCache.BOTTOM_ROW_CHARS, 0, backBuffer[HEIGHT - 1], 0, WIDTH);
+
+            for (int line = 0; line < lines.size(); line++) {
+                int row = 1 + paddingTop + line;
+                int padding = (WIDTH - 2 - lines.length(line)) / 2;
+                CharSequence source = lines.source(line);
+                for (int i = lines.start(line), col = 1 + padding; i < lines.end(line); i++, col++) {
+                    backBuffer[row][col] = source.charAt(i);
+                }
+                backLine[row] = line;
+                backPadding[row] = padding;
+            }
+        }
+
+        /**
+         * On ANSI terminals frame 0 is drawn like any other frame, the following frames only write their
+         * precompiled dirty spans, and the last frame is then adopted as the front buffer. Dumb terminals
+         * only get the last frame, so an animation costs them one redraw like a still would.
+         */
+        @Override
+        public void playAnimationFrame(CompiledAnimation animation, int frame) {
+            boolean last = frame == animation.frameCount - 1;
+            if (frame == 0 && ansi && !LEGACY_OUTPUT) {
+                drawFrame(animation.firstFrame, "");
+            } else if (!ansi || LEGACY_OUTPUT || !frontValid) {
+                if (last) drawFrame(animation.lastFrame, "");
+            } else {
+                composer.reset();
+                composer.append(animation.stream, animation.offsets[frame], animation.offsets[frame + 1]);
+                composer.append(GlyphCache.CURSOR_TO_ROW[HEIGHT]);
+                flushFrame();
+                if (last) {
+                    // The terminal now shows the last frame; make the front buffer agree without redrawing
+                    composeBackBuffer(layout(animation.lastFrame));
+                    char[][] shown = backBuffer;
+                    backBuffer = frontBuffer;
+                    frontBuffer = shown;
+                }
+            }
+        }
+
+        /**
+         * On ANSI terminals the marker goes back to its row under the prompt, over the rejected input,
+         * so repeated bad input never scrolls the screen away from the front buffer. Elsewhere it is
+         * printed where the cursor is, which may scroll, so the next frame is drawn whole.
+         */
+        @Override
+        public void showInputMarker() {
+            if (LEGACY_OUTPUT) {
+                legacyOut.print("> ");
+                frontValid = false;
+                return;
+            }
+            composer.reset();
+            if (ansi && frontValid) composer.append(GlyphCache.CURSOR_TO_ROW[HEIGHT + 1]).append(GlyphCache.ERASE_BELOW);
+            else frontValid = false;
+            composer.append("> ");
+            try {
+                composer.writeTo(out, terminal.charset());
+            } catch (IOException e) {
+                frontValid = false;
             }
         }
 
+        @Override public long getFramesDrawn() { return framesDrawn; }
+        @Override public long getBytesWritten() { return out.getCount() + legacyBytes.getCount(); }
+
+        @Override
+        public String closeDayReport() {
+            long frames = framesDrawn - dayStartFrames;
+            long bytes = getBytesWritten() - dayStartBytes;
+            dayStartFrames = framesDrawn;
+            dayStartBytes = getBytesWritten();
+            return String.format("Render: %d frames, %,d bytes (%s terminal)", frames, bytes, ansi ? "ANSI" : "dumb");
+        }
+
         private void printEmptyLine() {
-            System.out.print(VERTICAL);
-            for(int i=0; i<WIDTH-2; i++) System.out.print(" ");
-            System.out.println(VERTICAL);
+            legacyOut.print(VERTICAL);
+            for(int i=0; i<WIDTH-2; i++) legacyOut.print(" ");
+            legacyOut.println(VERTICAL);
         }
 
-        private void printCenteredLine(String text) {
-            int visibleLen = text.length(); // No ANSI codes to worry about now
+        private void printCenteredLine(CharSequence text, int start, int end) {
+            int visibleLen = end - start; // No ANSI codes to worry about now
             int padding = (WIDTH - 2 - visibleLen) / 2;
             int rightPadding = WIDTH - 2 - visibleLen - padding;
 
-            System.out.print(VERTICAL);
-            for(int i=0; i<padding; i++) System.out.print(" ");
-            System.out.print(text);
-            for(int i=0; i<rightPadding; i++) System.out.print(" ");
-            System.out.println(VERTICAL);
-        }
-
-        private List<String> wrapText(String text, int maxWidth) {
-            List<String> lines = new ArrayList<>();
-            String[] words = text.split(" ");
-            StringBuilder currentLine = new StringBuilder();
-            
-            for (String word : words) {
-                if (currentLine.length() + word.length() + 1 <= maxWidth) {
-                    currentLine.append(word).append(" ");
-                } else {
-                    lines.add(currentLine.toString());
-                    currentLine = new StringBuilder(word).append(" ");
-                }
-            }
-            if (currentLine.length() > 0) lines.add(currentLine.toString());
-            return lines;
+            legacyOut.print(VERTICAL);
+            for(int i=0; i<padding; i++) legacyOut.print(" ");
+            legacyOut.append(text, start, end);
+            for(int i=0; i<rightPadding; i++) legacyOut.print(" ");
+            legacyOut.println(VERTICAL);
         }
 
+        @Override
         public void clearScreen() {
+            // The screen no longer shows the front buffer, so the next frame must be drawn whole
+            frontValid = false;
+            if (terminal.supportsAnsi()) {
+                legacyOut.write(GlyphCache.CLEAR_AND_HOME, 0, GlyphCache.CLEAR_AND_HOME.length);
+                return;
+            }
             // "Dirty" clear that works on all systems by scrolling
-            for(int i=0; i<50; i++) System.out.println();
+            for(int i=0; i<50; i++) legacyOut.println();
         }
     }
 
-    // ==========================================
-    //            CONTROLLER LAYER
-    // ==========================================
-
-    static class GameManager {
-        private Player currentPlayer;
-        private DataManager dataManager;
-        private UserInterface ui;
-        private GameStatistics gameStats;
-        private Leaderboard leaderboard;
-        private AchievementTracker achievementTracker;
-        private AnimationManager animationManager;
-        private StoryManager storyManager;
-        
-        private int currentDay;
-        private boolean gameInProgress;
-        private Random random;
-
-        private static final int DAYS_PER_GAME = 7;
-        private static final int CUSTOMERS_PER_DAY = 5;
-        
-        private final String[] CUSTOMER_NAMES = {"Alice", "Bob", "Charlie", "Diana", "Edward", "Fiona", "George", "Zoe"};
-        private final String[] DRINK_TYPES = {"Milk Tea", "Taro Milk Tea", "Matcha Milk Tea", "Strawberry Boba", "Brown Sugar Boba"};
+    /**
+     * Renderer for load and soak tests: nothing reaches the terminal.
+     * When measuring, frames are still composed (as for an ANSI terminal) into a discarding sink
+     * so byte counts stay comparable with a real session; otherwise only frames are counted.
+     */
+    static class HeadlessRenderer implements Renderer {
+        private final RenderSystem measuring;
+        private long framesDrawn;
+        private long dayStartFrames;
+        private long dayStartBytes;
 
-        public GameManager() {
-            this.dataManager = new DataManager();
-            this.ui = new UserInterface();
-            this.gameStats = new GameStatistics();
-            this.leaderboard = new Leaderboard(dataManager);
-            this.achievementTracker = new AchievementTracker();
-            this.animationManager = new AnimationManager(ui);
-            this.storyManager = new StoryManager(ui);
-            this.random = new Random();
-            this.currentDay = 1;
+        public HeadlessRenderer(boolean measureBytes) {
+            this.measuring = measureBytes ? new RenderSystem(OutputStream.nullOutputStream(), new TerminalCapabilities(true)) : null;
         }
 
-        public void start() {
-            animationManager.playIntroCutscene();
-            boolean running = true;
+        @Override
+        public void drawFrame(List<String> content, String prompt) {
+            framesDrawn++;
+            if (measuring != null) measuring.drawFrame(content, prompt);
+        }
 
-            while (running) {
-                int choice = ui.showMainMenu();
-                switch (choice) {
-                    case 1: startNewGame(); break;
-                    case 2: handleUserProfile(); break;
-                    case 3: ui.showStatistics(currentPlayer != null ? currentPlayer : new Player("Guest")); break;
-                    case 4: ui.showTutorial(); break;
-                    case 5: ui.showLeaderboard(leaderboard.getEntries()); break;
-                    case 6: ui.showAchievements(achievementTracker.getAchievements()); break;
-                    case 7: ui.showCredits(); break;
-                    case 8: running = false; ui.showExitMessage(); break;
-                    default: ui.showMessage("Invalid Option!");
-                }
-            }
+        @Override
+        public void drawStaticFrame(List<String> content, String prompt) {
+            framesDrawn++;
+            if (measuring != null) measuring.drawStaticFrame(content, prompt);
         }
 
-        public void startNewGame() {
-            if (currentPlayer == null) {
-                ui.showMessage("Please log in or create a profile first!");
-                handleUserProfile();
-                if (currentPlayer == null) return;
-            }
+        @Override
+        public void playAnimationFrame(CompiledAnimation animation, int frame) {
+            framesDrawn++;
+            if (measuring != null) measuring.playAnimationFrame(animation, frame);
+        }
 
-            currentDay = 1;
-            gameStats.resetDaily();
-            gameInProgress = true;
-            
-            storyManager.showGameStartCutscene(currentPlayer.getUsername());
-            runGameLoop();
+        @Override
+        public void invalidateFrameCache() {
+            if (measuring != null) measuring.invalidateFrameCache();
         }
 
-        private void runGameLoop() {
-            while (currentDay <= DAYS_PER_GAME && gameInProgress) {
-                animationManager.playDayTransition(currentDay);
-                
-                int dailyScore = 0;
-                int ordersMade = 0;
-                int ordersMissed = 0;
-                
-                Queue<Customer> queue = generateDailyCustomers();
-                
-                while (!queue.isEmpty()) {
-                    Customer customer = queue.poll();
-                    
-                    animationManager.showCustomerArrival(customer);
-                    
-                    boolean success = serveCustomer(customer);
-                    
-                    if (success) {
-                        ordersMade++;
-                        int score = customer.getOrder().calculateScore();
-                        if (customer.isVip()) score *= 1.5;
-                        dailyScore += score;
-                        animationManager.showHappyCustomer();
-                    } else {
-                        ordersMissed++;
-                        animationManager.showUnhappyCustomer();
-                    }
-                    
-                    if(success) currentPlayer.addScore(dailyScore);
-                }
-                
-                currentPlayer.incrementDaysPlayed();
-                ui.showDailySummary(currentDay, ordersMade, ordersMissed, dailyScore);
-                achievementTracker.checkAchievements(currentPlayer);
-                try { dataManager.savePlayer(currentPlayer); } catch (Exception e) {}
-                currentDay++;
-            }
-            
-            endGame();
+        @Override
+        public void invalidateFrame(List<String> content) {
+            if (measuring != null) measuring.invalidateFrame(content);
         }
 
-        private boolean serveCustomer(Customer customer) {
-            Order order = customer.getOrder();
-            
-            // Show interaction with prompt
-            ui.renderer.drawFrame(Arrays.asList(
-                "NEW CUSTOMER ARRIVED!",
-                "",
-                "Name: " + customer.getName() + (customer.isVip() ? " [VIP]" : ""),
-                "Greeting: \"" + customer.getGreeting() + "\"",
-                "",
-                "ORDER: " + order.getDrinkName(),
-                "RECIPE: " + String.join(", ", order.getIngredients()),
-                ""
-            ), "Type ingredients (comma separated):");
-            
-            long startTime = System.currentTimeMillis();
-            String input = ui.scanner.nextLine();
-            long endTime = System.currentTimeMillis();
-            
-            if (input.equalsIgnoreCase("exit")) {
-                gameInProgress = false;
-                return false;
-            }
-            
-            double timeSeconds = (endTime - startTime) / 1000.0;
-            boolean success = order.checkCorrectness(input);
-            order.complete(success, timeSeconds);
-            
-            ui.showOrderResult(success, order);
-            return success;
+        @Override public void showInputMarker() {}
+        @Override public void clearScreen() {}
+        @Override public long getFramesDrawn() { return framesDrawn; }
+        @Override public long getBytesWritten() { return measuring != null ? measuring.getBytesWritten() : 0; }
+
+        @Override
+        public String closeDayReport() {
+            long frames = framesDrawn - dayStartFrames;
+            long bytes = getBytesWritten() - dayStartBytes;
+            dayStartFrames = framesDrawn;
+            dayStartBytes = getBytesWritten();
+            return String.format("Render: %d frames, %,d bytes (headless)", frames, bytes);
         }
+    }
 
-        private Queue<Customer> generateDailyCustomers() {
-            Queue<Customer> queue = new LinkedList<>();
-            for (int i = 0; i < CUSTOMERS_PER_DAY; i++) {
-                boolean isVip = random.nextDouble() < 0.2;
-                String name = CUSTOMER_NAMES[random.nextInt(CUSTOMER_NAMES.length)];
-                Customer c = new Customer(name, isVip);
-                String drink = DRINK_TYPES[random.nextInt(DRINK_TYPES.length)];
-                c.setOrder(new Order(drink));
-                queue.add(c);
+    /** Renderer for tests: keeps every frame's content and prompt instead of drawing it. */
+    static class CapturingRenderer implements Renderer {
+        static class CapturedFrame {
+            final List<String> content;
+            final String prompt;
+            final boolean isStatic;
+
+            CapturedFrame(List<String> content, String prompt, boolean isStatic) {
+                this.content = content;
+                this.prompt = prompt;
+                this.isStatic = isStatic;
             }
-            return queue;
+
+            public List<String> getContent() { return content; }
+            public String getPrompt() { return prompt; }
+            public boolean isStatic() { return isStatic; }
         }
 
-        private void endGame() {
-            animationManager.playEndingCutscene(currentPlayer.calculateRating());
-            leaderboard.addEntry(currentPlayer.getUsername(), currentPlayer.getTotalScore());
-            try { 
-                dataManager.savePlayer(currentPlayer); 
-                dataManager.saveLeaderboard(leaderboard.getScoresMap());
-            } catch (Exception e) {}
-            gameInProgress = false;
+        private final List<CapturedFrame> frames = new ArrayList<>();
+        private int dayStartFrames;
+
+        @Override
+        public void drawFrame(List<String> content, String prompt) {
+            frames.add(new CapturedFrame(new ArrayList<>(content), prompt, false));
         }
 
-        public void handleUserProfile() {
-            int choice = ui.showLoginMenu();
-            if (choice == 1) login();
-            else if (choice == 2) signup();
+        @Override
+        public void drawStaticFrame(List<String> content, String prompt) {
+            frames.add(new CapturedFrame(new ArrayList<>(content), prompt, true));
         }
 
-        private void login() {
-            String username = ui.getTextInput("Enter Username:");
-            try {
-                Player p = dataManager.loadPlayer(username);
-                if (p != null) {
-                    currentPlayer = p;
-                    ui.showMessage("Welcome back, " + username + "!");
-                } else {
-                    ui.showMessage("User not found.");
-                }
-            } catch (Exception e) { ui.showMessage("Error loading profile."); }
+        // Only the end points are kept; the frames in between exist as compiled deltas
+        @Override
+        public void playAnimationFrame(CompiledAnimation animation, int frame) {
+            if (frame == 0) frames.add(new CapturedFrame(animation.firstFrame, "", true));
+            else if (frame == animation.frameCount - 1) frames.add(new CapturedFrame(animation.lastFrame, "", true));
         }
 
-        private void signup() {
-            String username = ui.getTextInput("New Username:");
-            currentPlayer = new Player(username);
-            try {
-                dataManager.savePlayer(currentPlayer);
-                ui.showMessage("Profile created!");
-            } catch (Exception e) { ui.showMessage("Error saving profile."); }
+        public List<CapturedFrame> getFrames() { return frames; }
+        public CapturedFrame lastFrame() { return frames.isEmpty() ? null : frames.get(frames.size() - 1); }
+        public void clear() { frames.clear(); dayStartFrames = 0; }
+
+        // Nothing is memoized; every static frame is captured as drawn
+        @Override public void invalidateFrameCache() {}
+        @Override public void invalidateFrame(List<String> content) {}
+        @Override public void showInputMarker() {}
+        @Override public void clearScreen() {}
+        @Override public long getFramesDrawn() { return frames.size(); }
+        @Override public long getBytesWritten() { return 0; }
+
+        @Override
+        public String closeDayReport() {
+            int frameCount = frames.size() - dayStartFrames;
+            dayStartFrames = frames.size();
+            return String.format("Render: %d frames captured", frameCount);
         }
     }
 
+    /**
+     * Serializes everything sent to a Renderer onto one "barista-render" thread.
+     * Frames submitted from any thread are drawn whole and in submission order, never interleaved.
+     * Each queued stage may run for a while (an animation) and the next one starts only when it completes.
+     * Frames with a prompt wait until they are on screen; prompt-less frames are fire-and-forget.
+     */
+    static class RenderQueue implements Renderer {
+        private final Renderer target;
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "barista-render");
+            t.setDaemon(true);
+            return t;
+        });
+        private CompletableFuture<?> tail = CompletableFuture.completedFuture(null);
+
+        public RenderQueue(Renderer target) { this.target = target; }
+
+        /**
+         * Queues a stage that runs on the render thread against the wrapped renderer once every earlier
+         * stage has completed. The stage's own future decides when the following stage may start.
+         */
+        public synchronized <T> CompletableFuture<T> enqueue(Function<Renderer, CompletableFuture<T>> stage) {
+            CompletableFuture<T> next = tail.handle((v, e) -> null).thenComposeAsync(v -> stage.apply(target), executor);
+            tail = next;
+            return next;
+        }
+
+        /** Queues a drawing task against the wrapped renderer; the content must not be mutated afterwards. */
+        public CompletableFuture<Void> submit(Runnable task) {
+            return enqueue(r -> {
+                task.run();
+                return CompletableFuture.completedFuture(null);
+            });
+        }
+
+        /** The render thread's scheduler, for stages that time themselves. */
+        public ScheduledExecutorService executor() { return executor; }
+
+        @Override
+        public void drawFrame(List<String> content, String prompt) {
+            CompletableFuture<Void> shown = submit(() -> target.drawFrame(content, prompt));
+            if (prompt != null && !prompt.isEmpty()) await(shown);
+        }
+
+        @Override
+        public void drawStaticFrame(List<String> content, String prompt) {
+            CompletableFuture<Void> shown = submit(() -> target.drawStaticFrame(content, prompt));
+            if (prompt != null && !prompt.isEmpty()) await(shown);
+        }
+
+        @Override public void playAnimationFrame(CompiledAnimation animation, int frame) { submit(() -> target.playAnimationFrame(animation, frame)); }
+        // Queued like a frame, so it applies after everything drawn before it and before anything after
+        @Override public void invalidateFrameCache() { submit(target::invalidateFrameCache); }
+        @Override public void invalidateFrame(List<String> content) { submit(() -> target.invalidateFrame(content)); }
+        @Override public void showInputMarker() { await(submit(target::showInputMarker)); }
+        @Override public void clearScreen() { await(submit(target::clearScreen)); }
+        @Override public long getFramesDrawn() { return call(target::getFramesDrawn); }
+        @Override public long getBytesWritten() { return call(target::getBytesWritten); }
+        @Override public String closeDayReport() { return call(target::closeDayReport); }
+
+        private <T> T call(Supplier<T> query) { return await(enqueue(r -> CompletableFuture.completedFuture(query.get()))); }
+
+        static <T> T await(CompletableFuture<T> future) {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw e;
+            }
+        }
+    }
+
+    /** One still of an animation: what to draw and how long it stays up. */
+    static class Keyframe {
+        final List<String> content;
+        final boolean isStatic;
+        final int holdMillis;
+
+        private Keyframe(List<String> content, boolean isStatic, int holdMillis) {
+            this.content = content;
+            this.isStatic = isStatic;
+            this.holdMillis = holdMillis;
+        }
+
+        public static Keyframe of(List<String> content, int holdMillis) { return new Keyframe(content, false, holdMillis); }
+        /** For constant content, drawn through the renderer's frame cache. */
+        public static Keyframe ofStatic(List<String> content, int holdMillis) { return new Keyframe(content, true, holdMillis); }
+    }
+
+    /**
+     * Plays keyframe sequences on the render thread at a fixed tick rate instead of sleeping the game loop.
+     * play() returns at once; later frames queue up behind the animation, so the next prompt still appears
+     * after it. Enter on an interactive console skips the rest of the sequence.
+     * -Dbarista.fps sets the tick rate (default 30), -Dbarista.turbo=true collapses every hold to zero.
+     */
+    static class RenderScheduler {
+        private final RenderQueue queue;
+        private final long tickMillis;
+        private final boolean turbo;
+        private final boolean interactive = System.console() != null;
+
+        public RenderScheduler(RenderQueue queue) {
+            this(queue, Integer.getInteger("barista.fps", 30), Boolean.getBoolean("barista.turbo"));
+        }
+
+        public RenderScheduler(RenderQueue queue, int fps, boolean turbo) {
+            this.queue = queue;
+            this.tickMillis = Math.max(1, 1000 / Math.max(1, fps));
+            this.turbo = turbo;
+        }
+
+        public boolean isTurbo() { return turbo; }
+
+        public CompletableFuture<Void> play(Keyframe... frames) { return play(Arrays.asList(frames)); }
+
+        public CompletableFuture<Void> play(List<Keyframe> frames) {
+            return play(new Sequence() {
+                @Override public int size() { return frames.size(); }
+                @Override public int holdMillis(int i) { return frames.get(i).holdMillis; }
+
+                @Override
+                public void draw(Renderer renderer, int i) {
+                    Keyframe frame = frames.get(i);
+                    if (frame.isStatic) renderer.drawStaticFrame(frame.content, "");
+                    else renderer.drawFrame(frame.content, "");
+                }
+            });
+        }
+
+        public CompletableFuture<Void> play(CompiledAnimation animation) {
+            return play(new Sequence() {
+                @Override public int size() { return animation.frameCount; }
+                @Override public int holdMillis(int i) { return animation.frameMillis; }
+                @Override public void draw(Renderer renderer, int i) { renderer.playAnimationFrame(animation, i); }
+            });
+        }
+
+        private CompletableFuture<Void> play(Sequence sequence) {
+            return queue.enqueue(renderer -> {
+                if (turbo) {
+                    for (int i = 0; i < sequence.size(); i++) sequence.draw(renderer, i);
+                    return CompletableFuture.completedFuture(null);
+                }
+                return new Playback(renderer, sequence).start();
+            });
+        }
+
+        private interface Sequence {
+            int size();
+            int holdMillis(int i);
+            void draw(Renderer renderer, int i);
+        }
+
+        // Enter pressed while an animation runs; the keypress is consumed so it doesn't leak into the next prompt
+        private boolean skipRequested() {
+            if (!interactive) return false;
+            try {
+                int pending = System.in.available();
+                if (pending <= 0) return false;
+                System.in.read(new byte[pending]);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private class Playback {
+            private final Renderer renderer;
+            private final Sequence frames;
+            private final CompletableFuture<Void> done = new CompletableFuture<>();
+            private ScheduledFuture<?> ticker;
+            private int index;
+            private long shownAt;
+
+            Playback(Renderer renderer, Sequence frames) {
+                this.renderer = renderer;
+                this.frames = frames;
+            }
+
+            CompletableFuture<Void> start() {
+                if (frames.size() == 0) return CompletableFuture.completedFuture(null);
+                show(0);
+                ticker = queue.executor().scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+                return done;
+            }
+
+            private void tick() {
+                try {
+                    if (skipRequested()) {
+                        skipToEnd();
+                        finish();
+                    } else if (System.currentTimeMillis() - shownAt >= frames.holdMillis(index)) {
+                        if (index == frames.size() - 1) finish();
+                        else show(index + 1);
+                    }
+                } catch (RuntimeException e) {
+                    ticker.cancel(false);
+                    done.completeExceptionally(e);
+                }
+            }
+
+            private void show(int i) {
+                index = i;
+                frames.draw(renderer, i);
+                shownAt = System.currentTimeMillis();
+            }
+
+            // Compiled animations are deltas and must be applied in order, so skipping plays the rest back to back
+            private void skipToEnd() {
+                while (index < frames.size() - 1) show(index + 1);
+            }
+
+            private void finish() {
+                ticker.cancel(false);
+                done.complete(null);
+            }
+        }
+    }
+
+    /** A block of ASCII art. Spaces are transparent, so sprites can overlap the scenery. */
+    static class Sprite {
+        final String[] rows;
+
+        public Sprite(String... rows) { this.rows = rows; }
+
+        void drawOn(char[][] canvas, int x, int y) {
+            for (int r = 0; r < rows.length; r++) {
+                int cy = y + r;
+                if (cy < 0 || cy >= canvas.length) continue;
+                for (int c = 0; c < rows[r].length(); c++) {
+                    int cx = x + c;
+                    char ch = rows[r].charAt(c);
+                    if (ch != ' ' && cx >= 0 && cx < canvas[cy].length) canvas[cy][cx] = ch;
+                }
+            }
+        }
+    }
+
+    /**
+     * Frame-by-frame description of an animation on the box's canvas (the full content area).
+     * Sprites are placed with positional keyframes; positions between keyframes are interpolated
+     * linearly. compile() turns the whole thing into a CompiledAnimation once, at startup.
+     */
+    static class AsciiAnimation {
+        static final int CANVAS_WIDTH = RenderSystem.WIDTH - 4;
+        static final int CANVAS_HEIGHT = RenderSystem.HEIGHT - 2;
+
+        private static class Track {
+            final Sprite[] poses;        // Cycled one per frame, e.g. walking legs
+            final int[] keyFrames;       // Ascending frame numbers
+            final int[] keyX;
+            final int[] keyY;
+
+            Track(Sprite[] poses, int[] keyFrames, int[] keyX, int[] keyY) {
+                this.poses = poses;
+                this.keyFrames = keyFrames;
+                this.keyX = keyX;
+                this.keyY = keyY;
+            }
+
+            void drawOn(char[][] canvas, int frame) {
+                int last = keyFrames.length - 1;
+                if (frame < keyFrames[0] || frame > keyFrames[last]) return;
+                int k = 0;
+                while (k < last && frame > keyFrames[k + 1]) k++;
+                int x = keyX[k], y = keyY[k];
+                if (k < last && keyFrames[k + 1] > keyFrames[k]) {
+                    int span = keyFrames[k + 1] - keyFrames[k];
+                    int step = frame - keyFrames[k];
+                    x += Math.round((keyX[k + 1] - keyX[k]) * step / (float) span);
+                    y += Math.round((keyY[k + 1] - keyY[k]) * step / (float) span);
+                }
+                poses[frame % poses.length].drawOn(canvas, x, y);
+            }
+        }
+
+        private final String name;
+        private final int frameCount;
+        private final int frameMillis;
+        private final List<Track> tracks = new ArrayList<>();
+
+        public AsciiAnimation(String name, int frameCount, int frameMillis) {
+            this.name = name;
+            this.frameCount = frameCount;
+            this.frameMillis = frameMillis;
+        }
+
+        /** Sprite that stays put for the whole animation. */
+        public AsciiAnimation still(Sprite sprite, int x, int y) {
+            return path(new Sprite[] {sprite}, new int[] {0, frameCount - 1}, new int[] {x, x}, new int[] {y, y});
+        }
+
+        /** Centered text shown from the given frame to the end. */
+        public AsciiAnimation text(String text, int y, int fromFrame) {
+            int x = (CANVAS_WIDTH - text.length()) / 2;
+            return path(new Sprite[] {new Sprite(text)}, new int[] {fromFrame, frameCount - 1}, new int[] {x, x}, new int[] {y, y});
+        }
+
+        /** Sprite moving through (frame, x, y) keyframes; it is hidden before the first and after the last. */
+        public AsciiAnimation path(Sprite[] poses, int[] keyFrames, int[] keyX, int[] keyY) {
+            tracks.add(new Track(poses, keyFrames, keyX, keyY));
+            return this;
+        }
+
+        char[][] rasterize(int frame) {
+            char[][] canvas = new char[CANVAS_HEIGHT][CANVAS_WIDTH];
+            for (char[] row : canvas) Arrays.fill(row, ' ');
+            for (Track track : tracks) track.drawOn(canvas, frame);
+            return canvas;
+        }
+
+        /**
+         * Frame 0 is kept as content lines. Every later frame is stored as its dirty region against
+         * the previous frame: only rows that changed, each trimmed to its first..last changed column
+         * and prefixed with a cursor move. All frames share one byte stream.
+         */
+        public CompiledAnimation compile() {
+            FrameComposer composer = new FrameComposer(1024);
+            int[] offsets = new int[frameCount + 1];
+            char[][] previous = rasterize(0);
+            char[][] current = previous;
+            for (int f = 1; f < frameCount; f++) {
+                offsets[f] = composer.size();
+                current = rasterize(f);
+                for (int y = 0; y < CANVAS_HEIGHT; y++) {
+                    int from = 0;
+                    while (from < CANVAS_WIDTH && previous[y][from] == current[y][from]) from++;
+                    if (from == CANVAS_WIDTH) continue;
+                    int to = CANVAS_WIDTH;
+                    while (previous[y][to - 1] == current[y][to - 1]) to--;
+                    // Canvas (0,0) sits inside the border and the one-column centering margin
+                    composer.append("\u001B[").append(Integer.toString(y + 2)).append(";").append(Integer.toString(from + 3)).append("H");
+                    composer.append(new String(current[y], from, to - from));
+                }
+                previous = current;
+            }
+            offsets[frameCount] = composer.size();
+            return new CompiledAnimation(name, frameCount, frameMillis, composer.toByteArray(), offsets,
+                    toLines(rasterize(0)), toLines(current));
+        }
+
+        private static List<String> toLines(char[][] canvas) {
+            List<String> lines = new ArrayList<>(canvas.length);
+            for (char[] row : canvas) lines.add(new String(row));
+            return Collections.unmodifiableList(lines);
+        }
+    }
+
+    /** An AsciiAnimation reduced to its first and last frames plus one stream of per-frame deltas. */
+    static class CompiledAnimation {
+        final String name;
+        final int frameCount;
+        final int frameMillis;
+        final byte[] stream;        // Frame f's delta is stream[offsets[f] .. offsets[f + 1]); frame 0 is empty
+        final int[] offsets;
+        final List<String> firstFrame;
+        final List<String> lastFrame;
+
+        CompiledAnimation(String name, int frameCount, int frameMillis, byte[] stream, int[] offsets,
+                          List<String> firstFrame, List<String> lastFrame) {
+            this.name = name;
+            this.frameCount = frameCount;
+            this.frameMillis = frameMillis;
+            this.stream = stream;
+            this.offsets = offsets;
+            this.firstFrame = firstFrame;
+            this.lastFrame = lastFrame;
+        }
+    }
+
+    /**
+     * What the attached terminal understands, detected once at startup.
+     * -Dbarista.terminal=ansi|dumb overrides detection (default auto).
+     */
+    static class TerminalCapabilities {
+        private final boolean ansi;
+        private final Charset charset;
+
+        public TerminalCapabilities(boolean ansi) { this(ansi, StandardCharsets.UTF_8); }
+
+        public TerminalCapabilities(boolean ansi, Charset charset) {
+            this.ansi = ansi;
+            this.charset = charset;
+        }
+
+        public boolean supportsAnsi() { return ansi; }
+
+        /** The encoding the terminal displays, e.g. cp437 or cp850 on classic Windows CMD. */
+        public Charset charset() { return charset; }
+
+        public static TerminalCapabilities detect() {
+            Charset charset = consoleCharset();
+            String mode = System.getProperty("barista.terminal", "auto");
+            if (mode.equalsIgnoreCase("ansi")) return new TerminalCapabilities(true, charset);
+            if (mode.equalsIgnoreCase("dumb")) return new TerminalCapabilities(false, charset);
+
+            // Piped or redirected output never gets escape sequences
+            if (System.console() == null) return new TerminalCapabilities(false, charset);
+            String term = System.getenv("TERM");
+            if (term != null) return new TerminalCapabilities(!term.equals("dumb"), charset);
+            // Windows Terminal and ConEmu understand ANSI without setting TERM; classic CMD does not
+            return new TerminalCapabilities(System.getenv("WT_SESSION") != null || "ON".equalsIgnoreCase(System.getenv("ConEmuANSI")), charset);
+        }
+
+        // What System.out encodes with: the JVM's stdout encoding where it reports one, else the console's
+        private static Charset consoleCharset() {
+            for (String property : new String[] {"stdout.encoding", "sun.stdout.encoding"}) {
+                String name = System.getProperty(property);
+                try {
+                    if (name != null && Charset.isSupported(name)) return Charset.forName(name);
+                } catch (IllegalCharsetNameException e) {}
+            }
+            Console console = System.console();
+            return console != null ? console.charset() : StandardCharsets.UTF_8;
+        }
+    }
+
+    /** Passes writes straight through while counting the bytes. */
+    static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        public CountingOutputStream(OutputStream out) { super(out); }
+
+        @Override public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        public long getCount() { return count; }
+    }
+
+    /**
+     * Wrapped content lines recorded as (source, start, end) slices of the caller's text.
+     * The slice arrays are reused across frames, so wrapping produces no garbage once warmed up.
+     */
+    static class LineBuffer {
+        private CharSequence[] sources = new CharSequence[32];
+        private int[] starts = new int[32];
+        private int[] ends = new int[32];
+        private int count;
+
+        public void clear() {
+            Arrays.fill(sources, 0, count, null);
+            count = 0;
+        }
+
+        public int size() { return count; }
+        public CharSequence source(int line) { return sources[line]; }
+        public int start(int line) { return starts[line]; }
+        public int end(int line) { return ends[line]; }
+        public int length(int line) { return ends[line] - starts[line]; }
+
+        /**
+         * Lines that fit are kept verbatim (ASCII art relies on its spacing); longer lines are
+         * broken at spaces with trailing spaces dropped, and words wider than maxWidth are hard-broken.
+         */
+        public void wrap(CharSequence text, int maxWidth) {
+            int length = text.length();
+            if (length <= maxWidth) {
+                add(text, 0, length);
+                return;
+            }
+            int first = count;
+            int pos = 0;
+            while (pos < length) {
+                while (pos < length && text.charAt(pos) == ' ') pos++;
+                if (pos == length) break;
+
+                int lineEnd = pos;
+                int scan = pos;
+                while (scan < length) {
+                    int wordEnd = scan;
+                    while (wordEnd < length && text.charAt(wordEnd) != ' ') wordEnd++;
+                    if (wordEnd - pos > maxWidth) break;
+                    lineEnd = wordEnd;
+                    scan = wordEnd;
+                    while (scan < length && text.charAt(scan) == ' ') scan++;
+                }
+                if (lineEnd == pos) lineEnd = Math.min(pos + maxWidth, length); // Word wider than a line
+
+                add(text, pos, lineEnd);
+                pos = lineEnd;
+            }
+            if (count == first) add(text, 0, 0); // All spaces still takes up a row
+        }
+
+        private void add(CharSequence source, int start, int end) {
+            if (count == sources.length) {
+                sources = Arrays.copyOf(sources, count * 2);
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            sources[count] = source;
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+    }
+
+    /**
+     * Byte buffer a whole frame is assembled into before a single write.
+     * Characters are UTF-8 encoded on append; a console with another charset gets the frame
+     * re-encoded once as it is written.
+     */
+    static class FrameComposer {
+        private byte[] buffer;
+        private int size;
+
+        public FrameComposer(int capacity) { this.buffer = new byte[capacity]; }
+
+        public void reset() { size = 0; }
+        public int size() { return size; }
+
+        public FrameComposer append(byte[] bytes) {
+            return append(bytes, 0, bytes.length);
+        }
+
+        public FrameComposer append(byte[] bytes, int from, int to) {
+            ensureCapacity(to - from);
+            System.arraycopy(bytes, from, buffer, size, to - from);
+            size += to - from;
+            return this;
+        }
+
+        public FrameComposer append(CharSequence text) {
+            return append(text, 0, text.length());
+        }
+
+        public FrameComposer append(CharSequence text, int start, int end) {
+            ensureCapacity(end - start);
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                if (c < 0x80 && size < buffer.length) buffer[size++] = (byte) c;
+                else append(c);
+            }
+            return this;
+        }
+
+        public FrameComposer append(char c) {
+            ensureCapacity(3);
+            if (c < 0x80) {
+                buffer[size++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[size++] = (byte) (0xC0 | (c >> 6));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer[size++] = '?'; // Box content is BMP-only
+            } else {
+                buffer[size++] = (byte) (0xE0 | (c >> 12));
+                buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+            return this;
+        }
+
+        public byte[] toByteArray() { return Arrays.copyOf(buffer, size); }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(buffer, 0, size);
+            out.flush();
+        }
+
+        /** Writes the frame in the given charset; characters it cannot show become '?'. */
+        public void writeTo(OutputStream out, Charset charset) throws IOException {
+            if (charset.equals(StandardCharsets.UTF_8)) {
+                writeTo(out);
+                return;
+            }
+            out.write(new String(buffer, 0, size, StandardCharsets.UTF_8).getBytes(charset));
+            out.flush();
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    /**
+     * Pre-encoded border rows, blank row, padding runs and cursor moves.
+     * Built once per JVM and shared by every RenderSystem, so composing a frame is mostly array copies.
+     */
+    static class GlyphCache {
+        private static final int WIDTH = RenderSystem.WIDTH;
+        private static final int HEIGHT = RenderSystem.HEIGHT;
+        private static final String ESC = "\u001B[";
+
+        static final char[] TOP_ROW_CHARS = row(RenderSystem.TOP_LEFT, RenderSystem.HORIZONTAL, RenderSystem.TOP_RIGHT);
+        static final char[] BOTTOM_ROW_CHARS = row(RenderSystem.BOTTOM_LEFT, RenderSystem.HORIZONTAL, RenderSystem.BOTTOM_RIGHT);
+        static final char[] BLANK_ROW_CHARS = row(RenderSystem.VERTICAL, " ", RenderSystem.VERTICAL);
+
+        static final byte[] TOP_ROW = utf8(new String(TOP_ROW_CHARS));
+        static final byte[] BOTTOM_ROW = utf8(new String(BOTTOM_ROW_CHARS));
+        static final byte[] BLANK_ROW = utf8(new String(BLANK_ROW_CHARS));
+        static final byte[] VERTICAL = utf8(RenderSystem.VERTICAL);
+
+        // PADDING[n] is a run of n spaces, n = 0..WIDTH
+        static final byte[][] PADDING = new byte[WIDTH + 1][];
+        // CURSOR_TO_ROW[r] moves to column 1 of screen row r + 1 (one past the box is the prompt row,
+        // two past it the input marker's)
+        static final byte[][] CURSOR_TO_ROW = new byte[HEIGHT + 2][];
+
+        static final byte[] CLEAR_AND_HOME = utf8(ESC + "H" + ESC + "2J");
+        static final byte[] ERASE_BELOW = utf8(ESC + "J");
+        static final byte[] SCROLL_CLEAR = new byte[50];
+
+        static {
+            for (int n = 0; n <= WIDTH; n++) {
+                PADDING[n] = new byte[n];
+                Arrays.fill(PADDING[n], (byte) ' ');
+            }
+            for (int r = 0; r <= HEIGHT + 1; r++) CURSOR_TO_ROW[r] = utf8(ESC + (r + 1) + ";1H");
+            Arrays.fill(SCROLL_CLEAR, (byte) '\n');
+        }
+
+        private static char[] row(String left, String fill, String right) {
+            char[] chars = new char[WIDTH];
+            Arrays.fill(chars, fill.charAt(0));
+            chars[0] = left.charAt(0);
+            chars[WIDTH - 1] = right.charAt(0);
+            return chars;
+        }
+
+        private static byte[] utf8(String s) { return s.getBytes(StandardCharsets.UTF_8); }
+    }
+
+    /**
+     * LRU cache of fully composed frames, keyed on content list and prompt.
+     * Keys compare by value; constant screens pass the same String instances, so equality is a reference check per line.
+     */
+    static class FrameCache {
+        static class CachedFrame {
+            final char[][] grid;   // Box rows as they appear on screen, used for diffing
+            final byte[][] rows;   // Each box row pre-encoded
+            byte[] prompt;         // Prompt area bytes
+            byte[] fullFrame;      // Box rows + prompt for full redraws
+
+            CachedFrame(int height) {
+                this.grid = new char[height][];
+                this.rows = new byte[height][];
+            }
+        }
+
+        private static class Key {
+            final List<String> content;
+            final String prompt;
+            final int hash;
+
+            Key(List<String> content, String prompt) {
+                this.content = content;
+                this.prompt = prompt == null ? "" : prompt;
+                this.hash = content.hashCode() * 31 + this.prompt.hashCode();
+            }
+
+            @Override public int hashCode() { return hash; }
+
+            @Override public boolean equals(Object o) {
+                if (!(o instanceof Key)) return false;
+                Key other = (Key) o;
+                return hash == other.hash && prompt.equals(other.prompt) && content.equals(other.content);
+            }
+        }
+
+        private final Map<Key, CachedFrame> frames;
+
+        public FrameCache(int capacity) {
+            this.frames = new LinkedHashMap<Key, CachedFrame>(16, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(Map.Entry<Key, CachedFrame> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        public CachedFrame get(List<String> content, String prompt) { return frames.get(new Key(content, prompt)); }
+
+        // The content is copied so a caller mutating its list later cannot corrupt the key
+        public void put(List<String> content, String prompt, CachedFrame frame) {
+            frames.put(new Key(List.copyOf(content), prompt), frame);
+        }
+
+        public void remove(List<String> content) { frames.keySet().removeIf(k -> k.content.equals(content)); }
+        public void clear() { frames.clear(); }
+    }
+
+    // ==========================================
+    //            CONTROLLER LAYER
+    // ==========================================
+
+    static class GameManager {
+        private Player currentPlayer;
+        private DataManager dataManager;
+        private PlayerCache playerCache;
+        private Renderer renderer;
+        private RenderScheduler scheduler;
+        private UserInterface ui;
+        private GameStatistics gameStats;
+        private ScoreBoards boards;
+        private AchievementTracker achievementTracker;
+        private AnimationManager animationManager;
+        private StoryManager storyManager;
+        
+        private int currentDay;
+        private int scoreAtStart;
+        private boolean gameInProgress;
+        private Random random;
+
+        // Saves run in the background; their failures wait here until the next screen change
+        private final Queue<String> storageNotices = new ConcurrentLinkedQueue<>();
+        private CompletableFuture<Void> pendingSaves = CompletableFuture.completedFuture(null);
+        private CompletableFuture<LeaderboardCodec.Saved<Map<String, Integer>>> leaderboardLoad;
+        private CompletableFuture<LeaderboardCodec.Saved<Map<Long, Map<String, Integer>>>> scoreDaysLoad;
+
+        private static final int DAYS_PER_GAME = 7;
+        private static final int CUSTOMERS_PER_DAY = 5;
+        
+        private final String[] CUSTOMER_NAMES = {"Alice", "Bob", "Charlie", "Diana", "Edward", "Fiona", "George", "Zoe"};
+        private final String[] DRINK_TYPES = {"Milk Tea", "Taro Milk Tea", "Matcha Milk Tea", "Strawberry Boba", "Brown Sugar Boba"};
+
+        public GameManager() {
+            this.dataManager = new DataManager();
+            // Background storage failures wait for the next menu like those of the game's own saves,
+            // rather than being printed over the frame
+            dataManager.onNotice(storageNotices::add);
+            this.playerCache = new PlayerCache(dataManager);
+            // One renderer for every view, fed through a queue so frames from any thread never interleave
+            RenderQueue renderQueue = new RenderQueue(Renderer.create());
+            this.renderer = renderQueue;
+            this.scheduler = new RenderScheduler(renderQueue);
+            this.ui = new UserInterface(renderer);
+            this.gameStats = new GameStatistics();
+            // Read while the intro plays
+            this.leaderboardLoad = dataManager.loadLeaderboardAsync();
+            this.scoreDaysLoad = dataManager.loadScoreDaysAsync();
+            this.achievementTracker = new AchievementTracker();
+            this.animationManager = new AnimationManager(ui, scheduler);
+            this.storyManager = new StoryManager(ui, renderer);
+            this.random = new Random();
+            this.currentDay = 1;
+        }
+
+        public void start() {
+            animationManager.playIntroCutscene();
+            boards = new ScoreBoards(loaded(leaderboardLoad, "the leaderboard", new LeaderboardCodec.Saved<>(new HashMap<>(), Leaderboard.POLICY)),
+                    loaded(scoreDaysLoad, "this week's scores", new LeaderboardCodec.Saved<>(new TreeMap<>(), Leaderboard.POLICY)));
+            String option = Leaderboard.POLICY_OPTION;
+            if (option != null && Leaderboard.ScorePolicy.parse(option, null) == null) {
+                storageNotices.add("Unknown score policy '" + option + "', using " + Leaderboard.POLICY.label() + ".");
+            } else if (option != null && boards.policy() != Leaderboard.POLICY) {
+                storageNotices.add("The saved leaderboard keeps its " + boards.policy().label() + " score policy; delete "
+                        + DataManager.LEADERBOARD_FILE + " to start one with " + Leaderboard.POLICY.label() + ".");
+            }
+            boolean running = true;
+
+            while (running) {
+                showStorageNotices();
+                int choice = ui.showMainMenu();
+                switch (choice) {
+                    case 1: startNewGame(); break;
+                    case 2: handleUserProfile(); break;
+                    case 3: ui.showStatistics(currentPlayer != null ? currentPlayer : new Player("Guest")); break;
+                    case 4: ui.showTutorial(); break;
+                    case 5: browseLeaderboard(); break;
+                    case 6: ui.showAchievements(achievementTracker.getAchievements()); break;
+                    case 7: ui.showCredits(); break;
+                    case 8:
+                        running = false;
+                        // Let background saves land before the exit screen, so their failures are still shown
+                        pendingSaves.join();
+                        showStorageNotices();
+                        ui.showExitMessage();
+                        break;
+                    default: ui.showMessage("Invalid Option!");
+                }
+            }
+        }
+
+        public void startNewGame() {
+            if (currentPlayer == null) {
+                ui.showMessage("Please log in or create a profile first!");
+                handleUserProfile();
+                if (currentPlayer == null) return;
+            }
+
+            currentDay = 1;
+            scoreAtStart = currentPlayer.getTotalScore();
+            gameStats.resetDaily();
+            gameInProgress = true;
+            
+            storyManager.showGameStartCutscene(currentPlayer.getUsername());
+            runGameLoop();
+        }
+
+        private void runGameLoop() {
+            while (currentDay <= DAYS_PER_GAME && gameInProgress) {
+                animationManager.playDayTransition(currentDay);
+                
+                int dailyScore = 0;
+                int ordersMade = 0;
+                int ordersMissed = 0;
+                
+                Queue<Customer> queue = generateDailyCustomers();
+                
+                while (!queue.isEmpty()) {
+                    Customer customer = queue.poll();
+                    
+                    animationManager.showCustomerArrival(customer);
+                    
+                    boolean success = serveCustomer(customer);
+                    
+                    if (success) {
+                        ordersMade++;
+                        int score = customer.getOrder().calculateScore();
+                        if (customer.isVip()) score *= 1.5;
+                        dailyScore += score;
+                        animationManager.showHappyCustomer();
+                    } else {
+                        ordersMissed++;
+                        animationManager.showUnhappyCustomer();
+                    }
+                    
+                    if(success) currentPlayer.addScore(dailyScore);
+                }
+                
+                currentPlayer.incrementDaysPlayed();
+                playerCache.save(currentPlayer);
+                ui.showDailySummary(currentDay, ordersMade, ordersMissed, dailyScore, PlayerCache.REPORT_STATS ? playerCache.report() : null);
+                achievementTracker.checkAchievements(currentPlayer);
+                currentDay++;
+            }
+            
+            endGame();
+        }
+
+        private boolean serveCustomer(Customer customer) {
+            Order order = customer.getOrder();
+            
+            // Show interaction with prompt
+            renderer.drawFrame(Arrays.asList(
+                "NEW CUSTOMER ARRIVED!",
+                "",
+                "Name: " + customer.getName() + (customer.isVip() ? " [VIP]" : ""),
+                "Greeting: \"" + customer.getGreeting() + "\"",
+                "",
+                "ORDER: " + order.getDrinkName(),
+                "RECIPE: " + String.join(", ", order.getIngredients()),
+                ""
+            ), "Type ingredients (comma separated):");
+            
+            long startTime = System.currentTimeMillis();
+            String input = ui.scanner.nextLine();
+            long endTime = System.currentTimeMillis();
+            
+            if (input.equalsIgnoreCase("exit")) {
+                gameInProgress = false;
+                return false;
+            }
+            
+            double timeSeconds = (endTime - startTime) / 1000.0;
+            boolean success = order.checkCorrectness(input);
+            order.complete(success, timeSeconds);
+            
+            ui.showOrderResult(success, order);
+            return success;
+        }
+
+        private Queue<Customer> generateDailyCustomers() {
+            Queue<Customer> queue = new LinkedList<>();
+            for (int i = 0; i < CUSTOMERS_PER_DAY; i++) {
+                boolean isVip = random.nextDouble() < 0.2;
+                String name = CUSTOMER_NAMES[random.nextInt(CUSTOMER_NAMES.length)];
+                Customer c = new Customer(name, isVip);
+                String drink = DRINK_TYPES[random.nextInt(DRINK_TYPES.length)];
+                c.setOrder(new Order(drink));
+                queue.add(c);
+            }
+            return queue;
+        }
+
+        private void endGame() {
+            animationManager.playEndingCutscene(currentPlayer.calculateRating());
+            // The boards get this game's score and decide through their policy what the entries become
+            Set<ScoreBoards.Window> changed = boards.submit(currentPlayer.getUsername(), currentPlayer.getTotalScore() - scoreAtStart);
+            playerCache.save(currentPlayer);
+            List<CompletableFuture<Void>> saves = new ArrayList<>();
+            saves.add(playerCache.flushAsync());
+            if (changed.contains(ScoreBoards.Window.ALL_TIME)) {
+                saves.add(dataManager.saveLeaderboardAsync(boards.board(ScoreBoards.Window.ALL_TIME).getScoresMap(), boards.policy()));
+            }
+            if (changed.contains(ScoreBoards.Window.DAILY)) saves.add(dataManager.saveScoreDaysAsync(boards.days(), boards.policy()));
+            trackSave(CompletableFuture.allOf(saves.toArray(new CompletableFuture<?>[0])));
+            gameInProgress = false;
+        }
+
+        private <T> T loaded(CompletableFuture<T> load, String what, T fallback) {
+            try {
+                return load.join();
+            } catch (CompletionException e) {
+                ui.showMessage("Could not load " + what + ": " + e.getCause().getMessage());
+                return fallback;
+            }
+        }
+
+        private void browseLeaderboard() {
+            int pageSize = UserInterface.LEADERBOARD_PAGE;
+            ScoreBoards.Window window = ScoreBoards.Window.ALL_TIME;
+            int page = 0;
+            while (true) {
+                Leaderboard.Page view = boards.board(window).page(page * pageSize, pageSize, currentPlayer == null ? null : currentPlayer.getUsername());
+                int pages = Math.max(1, (view.total + pageSize - 1) / pageSize);
+                String choice = ui.showLeaderboard(window.label, view.entries, page * pageSize, page, pages, view.playerRank, view.total);
+                if (choice.equals("n")) {
+                    page = Math.min(page + 1, pages - 1);
+                } else if (choice.equals("p")) {
+                    page = Math.max(page - 1, 0);
+                } else if (choice.equals("d") || choice.equals("w") || choice.equals("a")) {
+                    window = choice.equals("d") ? ScoreBoards.Window.DAILY : choice.equals("w") ? ScoreBoards.Window.WEEKLY : ScoreBoards.Window.ALL_TIME;
+                    page = 0;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        // The game carries on while the save runs; a failure is reported on the next menu
+        private void trackSave(CompletableFuture<Void> save) {
+            CompletableFuture<Void> reported = save.handle((done, error) -> {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    storageNotices.add(cause instanceof StaleProfileException
+                            ? "Your profile was changed by another game, so this game's progress was not saved."
+                            : "Could not save your progress: " + cause.getMessage());
+                }
+                return null;
+            });
+            pendingSaves = CompletableFuture.allOf(pendingSaves, reported);
+        }
+
+        private void showStorageNotices() {
+            for (String notice; (notice = storageNotices.poll()) != null; ) ui.showMessage(notice);
+        }
+
+        public void handleUserProfile() {
+            int choice = ui.showLoginMenu();
+            if (choice == 1) login();
+            else if (choice == 2) signup();
+        }
+
+        private void login() {
+            String username = ui.getTextInput("Enter Username:");
+            try {
+                Player p = playerCache.loadAsync(username).join();
+                if (p != null) {
+                    currentPlayer = p;
+                    ui.showMessage("Welcome back, " + username + "!");
+                } else {
+                    ui.showMessage("User not found.");
+                }
+            } catch (CompletionException e) { ui.showMessage("Error loading profile: " + e.getCause().getMessage()); }
+        }
+
+        private void signup() {
+            String username = ui.getTextInput("New Username:");
+            // Two games signing up the same name at once is still caught when the second one saves
+            try {
+                if (playerCache.loadAsync(username).join() != null) {
+                    ui.showMessage("That username is taken.");
+                    return;
+                }
+            } catch (CompletionException e) {
+                ui.showMessage("Error checking username: " + e.getCause().getMessage());
+                return;
+            }
+            currentPlayer = new Player(username);
+            playerCache.save(currentPlayer);
+            ui.showMessage("Profile created!");
+        }
+    }
+
+    // ==========================================
+    //               MODEL LAYER
+    // ==========================================
+
+    static class Player implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private String username;
+        private int totalScore;
+        private int gamesPlayed;
+        private int daysPlayed;
+        private int version;
+        
+        public Player(String username) { this.username = username; this.totalScore = 0; }
+        public Player(String username, int totalScore, int gamesPlayed, int daysPlayed) {
+            this.username = username;
+            this.totalScore = totalScore;
+            this.gamesPlayed = gamesPlayed;
+            this.daysPlayed = daysPlayed;
+        }
+        public void addScore(int score) { this.totalScore += score; }
+        public void incrementDaysPlayed() { this.daysPlayed++; }
+        public String getUsername() { return username; }
+        public int getTotalScore() { return totalScore; }
+        public int getGamesPlayed() { return gamesPlayed; }
+        public int getDaysPlayed() { return daysPlayed; }
+        /** Stored version this profile was loaded as (0 = never saved); saves check it against the store. */
+        public int getVersion() { return version; }
+        public void setVersion(int version) { this.version = version; }
+        /** Detached copy, safe to hand to another thread while this one keeps changing. */
+        public Player copy() {
+            Player copy = new Player(username, totalScore, gamesPlayed, daysPlayed);
+            copy.version = version;
+            return copy;
+        }
+        public int calculateRating() {
+            if (daysPlayed == 0) return 1;
+            int avg = totalScore / daysPlayed;
+            return avg > 500 ? 5 : avg > 300 ? 4 : avg > 150 ? 3 : 2;
+        }
+    }
+
+    static class Customer {
+        private String name;
+        private boolean isVip;
+        private Order order;
+        public Customer(String name, boolean isVip) { this.name = name; this.isVip = isVip; }
+        public void setOrder(Order order) { this.order = order; }
+        public Order getOrder() { return order; }
+        public String getName() { return name; }
+        public boolean isVip() { return isVip; }
+        public String getGreeting() { return isVip ? "I expect perfection." : "Hi! Can I get a drink?"; }
+    }
+
+    static class Order {
+        private String drinkName;
+        private List<String> ingredients;
+        private boolean correct;
+        private double timeTaken;
+
+        public Order(String drinkName) {
+            this.drinkName = drinkName;
+            this.ingredients = generateIngredients(drinkName);
+        }
+
+        private List<String> generateIngredients(String drink) {
+            List<String> list = new ArrayList<>();
+            list.add("Tea"); list.add("Milk");
+            if (drink.contains("Taro")) list.add("Taro");
+            if (drink.contains("Matcha")) list.add("Matcha");
+            if (drink.contains("Strawberry")) list.add("Strawberry");
+            if (drink.contains("Sugar")) list.add("Brown Sugar");
+            if (drink.contains("Boba")) list.add("Tapioca");
+            return list;
+        }
+
+        public boolean checkCorrectness(String input) {
+            if (input == null || input.isEmpty()) return false;
+            String[] parts = input.split(",");
+            List<String> provided = new ArrayList<>();
+            for (String p : parts) provided.add(p.trim().toLowerCase());
+            for (String req : ingredients) {
+                boolean found = false;
+                for (String p : provided) {
+                    if (p.contains(req.toLowerCase())) { found = true; break; }
+                }
+                if (!found) return false;
+            }
+            return true;
+        }
+
+        public void complete(boolean correct, double timeTaken) {
+            this.correct = correct;
+            this.timeTaken = timeTaken;
+        }
+
+        public int calculateScore() {
+            if (!correct) return 0;
+            return (timeTaken < 5.0) ? 150 : 100;
+        }
+        public String getDrinkName() { return drinkName; }
+        public List<String> getIngredients() { return ingredients; }
+    }
+
+    static class GameStatistics implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public void resetDaily() {}
+    }
+
+    static class AchievementTracker {
+        private List<String> unlocked = new ArrayList<>();
+        public void checkAchievements(Player p) {
+            if (p.getTotalScore() > 1000 && !unlocked.contains("High Roller")) unlocked.add("High Roller");
+        }
+        public List<String> getAchievements() { return unlocked; }
+    }
+
+    /**
+     * Safe to share between game sessions. Players are split by name hash across stripes, each with
+     * its own rank tree, top-K heap and read-write lock, so a score submission only locks its own
+     * stripe. Each stripe also publishes its top K as an immutable ranked list, so pages within the
+     * top are merged from those without any lock. Ranks and deeper pages take every stripe's read
+     * lock in index order and so see one consistent state; writers only ever hold one lock, so the
+     * two cannot deadlock. Ranks and pages are combined from the stripes without copying them.
+     */
+    static class Leaderboard {
+        // -Dbarista.leaderboardTop sets how many of the best entries are kept ranked for the first pages
+        static final int TOP_SIZE = Math.max(1, Integer.getInteger("barista.leaderboardTop", 100));
+        // -Dbarista.leaderboardStripes sets how many independently locked parts the board is split into
+        static final int STRIPES = Math.max(1, Integer.getInteger("barista.leaderboardStripes", 8));
+        // -Dbarista.scorePolicy=best|sum|latest sets how a player's game scores make up their entry on a new leaderboard;
+        // an unknown name falls back to best, and GameManager warns about it
+        static final String POLICY_OPTION = System.getProperty("barista.scorePolicy");
+        static final ScorePolicy POLICY = ScorePolicy.parse(POLICY_OPTION, ScorePolicy.BEST);
+
+        /** How a submitted game score combines with the player's entry. Saved files record it by ordinal, so only append. */
+        enum ScorePolicy {
+            BEST {
+                int combine(int entry, int score) { return Math.max(entry, score); }
+            },
+            SUM {
+                int combine(int entry, int score) { return entry + score; }
+            },
+            LATEST {
+                int combine(int entry, int score) { return score; }
+            };
+
+            abstract int combine(int entry, int score);
+
+            /** The policy with this name in any case, or the fallback if there is none. */
+            static ScorePolicy parse(String name, ScorePolicy fallback) {
+                for (ScorePolicy policy : values()) {
+                    if (policy.name().equalsIgnoreCase(name)) return policy;
+                }
+                return fallback;
+            }
+
+            String label() { return name().toLowerCase(); }
+        }
+
+        /**
+         * One page plus the player's rank and the total. A deep page reads all three from the same
+         * state; a top page is read without locks, so under concurrent submissions its rank and total
+         * may be a moment apart from it.
+         */
+        static class Page {
+            final List<Map.Entry<String, Integer>> entries;
+            final int playerRank, total;
+
+            Page(List<Map.Entry<String, Integer>> entries, int playerRank, int total) {
+                this.entries = entries;
+                this.playerRank = playerRank;
+                this.total = total;
+            }
+        }
+
+        private static final class Stripe {
+            final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+            final RankTree ranks = new RankTree();
+            final TopScores top = new TopScores(TOP_SIZE);
+            // The heap in rank order, replaced under the write lock whenever it changes
+            volatile List<Map.Entry<String, Integer>> ranked = Collections.emptyList();
+
+            void put(String name, int score) {
+                Integer old = ranks.scoreOf(name);
+                // Racing publishers of one entry can both get here with its final score
+                if (old != null && old == score) return;
+                ranks.put(name, score);
+                // A top entry that drops may now rank below someone the heap turned away
+                if (old != null && score < old && top.contains(name)) refillTop();
+                else if (top.offer(name, score)) ranked = top.ranked();
+            }
+
+            void remove(String name) {
+                ranks.remove(name);
+                if (top.contains(name)) refillTop();
+            }
+
+            void refillTop() {
+                top.clear();
+                for (Map.Entry<String, Integer> e : ranks.page(0, top.capacity())) top.offer(e.getKey(), e.getValue());
+                ranked = top.ranked();
+            }
+        }
+
+        private final Stripe[] stripes;
+        private final ScorePolicy policy;
+        // The authoritative entries, updated lock-free; the stripes' trees follow them
+        private final ConcurrentHashMap<String, AtomicInteger> entries = new ConcurrentHashMap<>();
+
+        public Leaderboard(Map<String, Integer> saved, int stripeCount, ScorePolicy policy) {
+            this.policy = policy;
+            stripes = new Stripe[stripeCount];
+            for (int i = 0; i < stripeCount; i++) stripes[i] = new Stripe();
+            saved.forEach((name, score) -> {
+                entries.put(name, new AtomicInteger(score));
+                stripeOf(name).ranks.put(name, score);
+            });
+            for (Stripe stripe : stripes) stripe.refillTop();
+        }
+
+        private Stripe stripeOf(String name) { return stripes[Math.floorMod(name.hashCode(), stripes.length)]; }
+
+        /**
+         * Combines a game score into the player's entry by compare-and-set, so concurrent submissions
+         * converge without a lock. Returns whether the entry changed; one that did not (under BEST, any
+         * score below the player's best) takes no lock and needs no save.
+         */
+        public boolean addEntry(String name, int score) {
+            AtomicInteger entry = entries.get(name);
+            if (entry == null) {
+                AtomicInteger created = new AtomicInteger(score);
+                entry = entries.putIfAbsent(name, created);
+                if (entry == null) {
+                    publish(name, created);
+                    return true;
+                }
+            }
+            while (true) {
+                int current = entry.get();
+                int next = policy.combine(current, score);
+                if (next == current) return false;
+                if (entry.compareAndSet(current, next)) break;
+            }
+            publish(name, entry);
+            return true;
+        }
+
+        /**
+         * Sets the entry outright, or removes it when score is null, bypassing the policy. For boards
+         * whose entries are recomputed, e.g. when a day leaves a window; not safe against concurrent
+         * addEntry calls for the same player.
+         */
+        public void setEntry(String name, Integer score) {
+            Stripe stripe = stripeOf(name);
+            stripe.lock.writeLock().lock();
+            try {
+                if (score == null) {
+                    entries.remove(name);
+                    stripe.remove(name);
+                } else {
+                    entries.put(name, new AtomicInteger(score));
+                    stripe.put(name, score);
+                }
+            } finally {
+                stripe.lock.writeLock().unlock();
+            }
+        }
+
+        // The entry is read under the stripe lock, so whichever racing submitter gets there last
+        // leaves the tree at the final value
+        private void publish(String name, AtomicInteger entry) {
+            Stripe stripe = stripeOf(name);
+            stripe.lock.writeLock().lock();
+            try {
+                stripe.put(name, entry.get());
+            } finally {
+                stripe.lock.writeLock().unlock();
+            }
+        }
+
+        /** Every entry in rank order. */
+        public List<Map.Entry<String, Integer>> getEntries() { return consistent(() -> pageOf(0, Integer.MAX_VALUE)); }
+        /** count entries starting at the zero-based rank from. */
+        public List<Map.Entry<String, Integer>> getPage(int from, int count) {
+            return withinTop(from, count) ? topPage(from, count) : consistent(() -> pageOf(from, count));
+        }
+        /** Zero-based rank of the player, or -1 if they have no entry. */
+        public int rankOf(String name) { return consistent(() -> rankOfLocked(name)); }
+        public int size() { return entries.size(); }
+        /** Without a player, a top page takes no lock; the player's rank still takes every stripe's. */
+        public Page page(int from, int count, String player) {
+            if (withinTop(from, count)) return new Page(topPage(from, count), player == null ? -1 : rankOf(player), size());
+            return consistent(() -> new Page(pageOf(from, count), player == null ? -1 : rankOfLocked(player), sizeLocked()));
+        }
+        public Map<String, Integer> getScoresMap() {
+            return consistent(() -> {
+                Map<String, Integer> map = new HashMap<>();
+                for (Stripe stripe : stripes) map.putAll(stripe.ranks.toMap());
+                return map;
+            });
+        }
+
+        // Runs the read with every stripe's read lock held, taken in index order
+        private <T> T consistent(Supplier<T> read) {
+            int locked = 0;
+            try {
+                for (; locked < stripes.length; locked++) stripes[locked].lock.readLock().lock();
+                return read.get();
+            } finally {
+                while (locked > 0) stripes[--locked].lock.readLock().unlock();
+            }
+        }
+
+        private int sizeLocked() {
+            int size = 0;
+            for (Stripe stripe : stripes) size += stripe.ranks.size();
+            return size;
+        }
+
+        private int rankOfLocked(String name) {
+            Integer score = stripeOf(name).ranks.scoreOf(name);
+            if (score == null) return -1;
+            int rank = 0;
+            for (Stripe stripe : stripes) rank += stripe.ranks.countBefore(name, score);
+            return rank;
+        }
+
+        // The best TOP_SIZE overall are all in their stripes' top lists
+        private static boolean withinTop(int from, int count) { return (long) Math.max(0, from) + Math.max(0, count) <= TOP_SIZE; }
+
+        // Each stripe's list is read once, so a page never mixes two versions of one stripe
+        private List<Map.Entry<String, Integer>> topPage(int from, int count) {
+            List<List<Map.Entry<String, Integer>>> runs = new ArrayList<>(stripes.length);
+            for (Stripe stripe : stripes) runs.add(stripe.ranked);
+            return merge(runs, Math.max(0, from), Math.max(0, count));
+        }
+
+        // Starts each stripe's tree at its share of the entries ranked before from
+        private List<Map.Entry<String, Integer>> pageOf(int from, int count) {
+            from = Math.max(0, from);
+            count = Math.min(count, Math.max(0, sizeLocked() - from));
+            List<List<Map.Entry<String, Integer>>> runs = new ArrayList<>(stripes.length);
+            int[] offsets = offsetsBefore(from);
+            for (int i = 0; i < stripes.length; i++) runs.add(stripes[i].ranks.page(offsets[i], count));
+            return merge(runs, 0, count);
+        }
+
+        // How many of each stripe's entries rank before the entry at the overall rank from. Each round
+        // takes the median of the widest remaining range as a pivot, counts what ranks before it in
+        // every stripe and narrows all ranges by that, so it finishes in O(stripes * log n) rounds
+        private int[] offsetsBefore(int from) {
+            int n = stripes.length;
+            int[] lo = new int[n], hi = new int[n];
+            for (int i = 0; i < n; i++) hi[i] = stripes[i].ranks.size();
+            while (true) {
+                int widest = 0;
+                for (int i = 1; i < n; i++) {
+                    if (hi[i] - lo[i] > hi[widest] - lo[widest]) widest = i;
+                }
+                if (hi[widest] == lo[widest]) return lo;
+                int mid = (lo[widest] + hi[widest]) >>> 1;
+                Map.Entry<String, Integer> pivot = stripes[widest].ranks.at(mid);
+                int[] before = new int[n];
+                int total = 0;
+                for (int i = 0; i < n; i++) {
+                    before[i] = i == widest ? mid : stripes[i].ranks.countBefore(pivot.getKey(), pivot.getValue());
+                    total += before[i];
+                }
+                if (total == from) return before;
+                for (int i = 0; i < n; i++) {
+                    if (total < from) lo[i] = Math.max(lo[i], i == widest ? mid + 1 : before[i]);
+                    else hi[i] = Math.min(hi[i], before[i]);
+                }
+            }
+        }
+
+        // Merges runs already in rank order, dropping the first skip entries and keeping count
+        private static List<Map.Entry<String, Integer>> merge(List<List<Map.Entry<String, Integer>>> runs, int skip, int count) {
+            List<Map.Entry<String, Integer>> out = new ArrayList<>(count);
+            int[] next = new int[runs.size()];
+            while (out.size() < count) {
+                int best = -1;
+                for (int i = 0; i < runs.size(); i++) {
+                    if (next[i] < runs.get(i).size() && (best < 0
+                            || LeaderboardCodec.RANK_ORDER.compare(runs.get(i).get(next[i]), runs.get(best).get(next[best])) < 0)) {
+                        best = i;
+                    }
+                }
+                if (best < 0) break;
+                Map.Entry<String, Integer> entry = runs.get(best).get(next[best]++);
+                if (skip > 0) skip--;
+                else out.add(entry);
+            }
+            return out;
+        }
+    }
+
+    /**
+     * Today's, the last seven days' and the all-time leaderboards, all fed by one stream of game
+     * scores. Besides the boards, each day's scores are rolled up per player in a day bucket under
+     * the same policy. When a day leaves the week only the players in its bucket are recomputed from
+     * the buckets that remain, so expiry costs O(bucket) instead of a rescan of every player. The
+     * all-time board takes scores lock-free; the windowed boards and buckets are kept under this
+     * object's monitor.
+     */
+    static class ScoreBoards {
+        static final int WEEK_DAYS = 7;
+
+        enum Window {
+            DAILY("Today"), WEEKLY("Last 7 days"), ALL_TIME("All time");
+
+            final String label;
+
+            Window(String label) { this.label = label; }
+        }
+
+        private final Leaderboard.ScorePolicy policy;
+        private final LongSupplier clock;
+        private final Leaderboard allTime;
+        // Epoch day -> player -> that day's scores combined; only days still in the week are kept
+        private final TreeMap<Long, Map<String, Integer>> days = new TreeMap<>();
+        private Leaderboard daily, weekly;
+        private long today;
+
+        /**
+         * Every board keeps the policy the all-time scores were saved under, as they cannot be
+         * recombined; day buckets saved under another one are dropped, which loses at most a week.
+         */
+        public ScoreBoards(LeaderboardCodec.Saved<Map<String, Integer>> allTime, LeaderboardCodec.Saved<Map<Long, Map<String, Integer>>> days) {
+            this(allTime.scores, days.policy == allTime.policy ? days.scores : Collections.emptyMap(),
+                    allTime.policy, () -> LocalDate.now().toEpochDay());
+        }
+
+        /** clock gives the current epoch day. */
+        public ScoreBoards(Map<String, Integer> allTimeSaved, Map<Long, Map<String, Integer>> savedDays,
+                           Leaderboard.ScorePolicy policy, LongSupplier clock) {
+            this.policy = policy;
+            this.clock = clock;
+            allTime = new Leaderboard(allTimeSaved, Leaderboard.STRIPES, policy);
+            today = clock.getAsLong();
+            savedDays.forEach((day, bucket) -> {
+                if (day > today - WEEK_DAYS && day <= today) days.put(day, new HashMap<>(bucket));
+            });
+            daily = new Leaderboard(days.getOrDefault(today, Collections.emptyMap()), Leaderboard.STRIPES, policy);
+            Map<String, Integer> week = new HashMap<>();
+            for (Map<String, Integer> bucket : days.values()) bucket.forEach((name, score) -> week.merge(name, score, policy::combine));
+            weekly = new Leaderboard(week, Leaderboard.STRIPES, policy);
+        }
+
+        /** Feeds one game score to every board; returns the windows whose entries changed. */
+        public Set<Window> submit(String name, int score) {
+            Set<Window> changed = EnumSet.noneOf(Window.class);
+            if (allTime.addEntry(name, score)) changed.add(Window.ALL_TIME);
+            synchronized (this) {
+                roll();
+                if (daily.addEntry(name, score)) {
+                    days.computeIfAbsent(today, day -> new HashMap<>()).merge(name, score, policy::combine);
+                    changed.add(Window.DAILY);
+                }
+                if (weekly.addEntry(name, score)) changed.add(Window.WEEKLY);
+            }
+            return changed;
+        }
+
+        public Leaderboard.ScorePolicy policy() { return policy; }
+
+        public Leaderboard board(Window window) {
+            if (window == Window.ALL_TIME) return allTime;
+            synchronized (this) {
+                roll();
+                return window == Window.DAILY ? daily : weekly;
+            }
+        }
+
+        /** A copy of the day buckets, for saving. */
+        public synchronized Map<Long, Map<String, Integer>> days() {
+            Map<Long, Map<String, Integer>> copy = new TreeMap<>();
+            days.forEach((day, bucket) -> copy.put(day, new HashMap<>(bucket)));
+            return copy;
+        }
+
+        // Moves to the current day: a fresh daily board, and each bucket that left the week is dropped
+        // with only its players rescored from the buckets still in it
+        private void roll() {
+            long now = clock.getAsLong();
+            if (now <= today) return;
+            today = now;
+            daily = new Leaderboard(Collections.emptyMap(), Leaderboard.STRIPES, policy);
+            while (!days.isEmpty() && days.firstKey() <= today - WEEK_DAYS) {
+                for (String name : days.pollFirstEntry().getValue().keySet()) {
+                    Integer rest = null;
+                    for (Map<String, Integer> bucket : days.values()) {
+                        Integer score = bucket.get(name);
+                        if (score != null) rest = rest == null ? score : policy.combine(rest, score);
+                    }
+                    weekly.setEntry(name, rest);
+                }
+            }
+        }
+    }
+
+    /**
+     * The best entries of the leaderboard, at most capacity of them, in a bounded min-heap with the
+     * lowest-ranked one at the root: a new score is checked against that cutoff in O(1) and admitted
+     * in O(log k), whatever the number of players. A name-to-slot map lets an entry already in the
+     * heap move in place.
+     */
+    static class TopScores {
+        private final String[] names;
+        private final int[] scores;
+        private final Map<String, Integer> slots = new HashMap<>();
+        private int size;
+
+        public TopScores(int capacity) {
+            names = new String[capacity];
+            scores = new int[capacity];
+        }
+
+        public int capacity() { return names.length; }
+
+        public boolean contains(String name) { return slots.containsKey(name); }
+
+        /** Admits or moves the entry if it ranks among the best capacity seen; returns whether the heap changed. */
+        public boolean offer(String name, int score) {
+            Integer slot = slots.get(name);
+            if (slot != null) {
+                if (scores[slot] == score) return false;
+                scores[slot] = score;
+                siftDown(siftUp(slot));
+            } else if (size < names.length) {
+                set(size, name, score);
+                siftUp(size++);
+            } else if (size > 0 && RankTree.compare(name, score, names[0], scores[0]) < 0) {
+                slots.remove(names[0]);
+                set(0, name, score);
+                siftDown(0);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        public void clear() {
+            Arrays.fill(names, 0, size, null);
+            slots.clear();
+            size = 0;
+        }
+
+        /** A new immutable list of the entries in rank order, in O(k log k). */
+        public List<Map.Entry<String, Integer>> ranked() {
+            List<Map.Entry<String, Integer>> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) list.add(new AbstractMap.SimpleImmutableEntry<>(names[i], scores[i]));
+            list.sort(LeaderboardCodec.RANK_ORDER);
+            return Collections.unmodifiableList(list);
+        }
+
+        private void set(int slot, String name, int score) {
+            names[slot] = name;
+            scores[slot] = score;
+            slots.put(name, slot);
+        }
+
+        // Parents rank after their children, so the root is the first to go
+        private boolean below(int a, int b) { return RankTree.compare(names[a], scores[a], names[b], scores[b]) < 0; }
+
+        private int siftUp(int slot) {
+            while (slot > 0) {
+                int parent = (slot - 1) / 2;
+                if (!below(parent, slot)) break;
+                swap(slot, parent);
+                slot = parent;
+            }
+            return slot;
+        }
+
+        private void siftDown(int slot) {
+            while (true) {
+                int child = 2 * slot + 1;
+                if (child >= size) return;
+                if (child + 1 < size && below(child, child + 1)) child++;
+                if (!below(slot, child)) return;
+                swap(slot, child);
+                slot = child;
+            }
+        }
+
+        private void swap(int a, int b) {
+            String name = names[a];
+            int score = scores[a];
+            set(a, names[b], scores[b]);
+            set(b, name, score);
+        }
+    }
+
+    /**
+     * Order-statistic treap over (name, score) entries in rank order: highest score first, ties by
+     * name, as LeaderboardCodec stores them. Each node keeps its subtree size, so an update, the rank
+     * of a player and the start of a page all take O(log n) expected, and a page of k entries is read
+     * in O(log n + k). A name-to-node map finds a player's current key for updates and rank queries.
+     */
+    static class RankTree {
+        private static final class Node {
+            final String name;
+            final int score;
+            final int priority;
+            int size = 1;
+            Node left, right;
+
+            Node(String name, int score, int priority) {
+                this.name = name;
+                this.score = score;
+                this.priority = priority;
+            }
+        }
+
+        private final Map<String, Node> nodes = new HashMap<>();
+        private final Random priorities = new Random();
+        private Node root;
+
+        public int size() { return nodes.size(); }
+
+        /** Adds the player or moves them to their new score. */
+        public void put(String name, int score) {
+            Node old = nodes.get(name);
+            if (old != null) {
+                if (old.score == score) return;
+                root = remove(root, old);
+            }
+            Node node = new Node(name, score, priorities.nextInt());
+            nodes.put(name, node);
+            root = insert(root, node);
+        }
+
+        public boolean remove(String name) {
+            Node node = nodes.remove(name);
+            if (node == null) return false;
+            root = remove(root, node);
+            return true;
+        }
+
+        public Integer scoreOf(String name) {
+            Node node = nodes.get(name);
+            return node == null ? null : node.score;
+        }
+
+        /** Zero-based rank of the player, or -1 if absent. */
+        public int rankOf(String name) {
+            Node node = nodes.get(name);
+            return node == null ? -1 : countBefore(node.name, node.score);
+        }
+
+        /** How many entries rank before the given one, whether or not it is in the tree. */
+        public int countBefore(String name, int score) {
+            int count = 0;
+            for (Node t = root; t != null; ) {
+                int order = compare(name, score, t.name, t.score);
+                if (order < 0) {
+                    t = t.left;
+                } else if (order > 0) {
+                    count += size(t.left) + 1;
+                    t = t.right;
+                } else {
+                    return count + size(t.left);
+                }
+            }
+            return count;
+        }
+
+        /** The entry at the zero-based rank, or null past the end. */
+        public Map.Entry<String, Integer> at(int rank) {
+            for (Node t = root; t != null; ) {
+                int left = size(t.left);
+                if (rank < left) {
+                    t = t.left;
+                } else if (rank == left) {
+                    return new AbstractMap.SimpleImmutableEntry<>(t.name, t.score);
+                } else {
+                    rank -= left + 1;
+                    t = t.right;
+                }
+            }
+            return null;
+        }
+
+        /** Up to count entries starting at the zero-based rank from. */
+        public List<Map.Entry<String, Integer>> page(int from, int count) {
+            List<Map.Entry<String, Integer>> page = new ArrayList<>(Math.max(0, Math.min(count, size() - from)));
+            collect(root, Math.max(0, from), count, page);
+            return page;
+        }
+
+        public Map<String, Integer> toMap() {
+            Map<String, Integer> map = new HashMap<>();
+            nodes.forEach((name, node) -> map.put(name, node.score));
+            return map;
+        }
+
+        // In order, skipping the first skip entries of the subtree; only descends where the page lies
+        private static void collect(Node t, int skip, int count, List<Map.Entry<String, Integer>> out) {
+            if (t == null || out.size() >= count) return;
+            int left = size(t.left);
+            if (skip < left) collect(t.left, skip, count, out);
+            if (out.size() < count && skip <= left) out.add(new AbstractMap.SimpleImmutableEntry<>(t.name, t.score));
+            collect(t.right, Math.max(0, skip - left - 1), count, out);
+        }
+
+        private static int compare(Node a, Node b) { return compare(a.name, a.score, b.name, b.score); }
+
+        /** Negative if entry a ranks before entry b. */
+        static int compare(String a, int aScore, String b, int bScore) {
+            if (aScore != bScore) return aScore > bScore ? -1 : 1;
+            return a.compareTo(b);
+        }
+
+        private static int size(Node t) { return t == null ? 0 : t.size; }
+
+        private static Node update(Node t) {
+            t.size = 1 + size(t.left) + size(t.right);
+            return t;
+        }
+
+        // Descends to where the node's priority puts it, then splits that subtree around it
+        private static Node insert(Node t, Node node) {
+            if (t == null) return node;
+            if (node.priority > t.priority) {
+                Node[] parts = split(t, node);
+                node.left = parts[0];
+                node.right = parts[1];
+                return update(node);
+            }
+            if (compare(node, t) < 0) t.left = insert(t.left, node);
+            else t.right = insert(t.right, node);
+            return update(t);
+        }
+
+        // Splits t into the nodes ranked before key and the rest
+        private static Node[] split(Node t, Node key) {
+            if (t == null) return new Node[2];
+            if (compare(t, key) < 0) {
+                Node[] parts = split(t.right, key);
+                t.right = parts[0];
+                parts[0] = update(t);
+                return parts;
+            }
+            Node[] parts = split(t.left, key);
+            t.left = parts[1];
+            parts[1] = update(t);
+            return parts;
+        }
+
+        // Every node of a ranks before every node of b
+        private static Node merge(Node a, Node b) {
+            if (a == null) return b;
+            if (b == null) return a;
+            if (a.priority > b.priority) {
+                a.right = merge(a.right, b);
+                return update(a);
+            }
+            b.left = merge(a, b.left);
+            return update(b);
+        }
+
+        private static Node remove(Node t, Node key) {
+            if (t == null) return null;
+            int order = compare(key, t);
+            if (order == 0) return merge(t.left, t.right);
+            if (order < 0) t.left = remove(t.left, key);
+            else t.right = remove(t.right, key);
+            return update(t);
+        }
+    }
+
+    // ==========================================
+    //               VIEW LAYER
+    // ==========================================
+
+    static class UserInterface {
+        private Scanner scanner = new Scanner(System.in);
+        private final Renderer renderer;
+
+        public UserInterface(Renderer renderer) { this.renderer = renderer; }
+
+        // Constant screens, drawn through the renderer's frame cache
+        private static final List<String> MAIN_MENU = Arrays.asList(
+            "",
+            "BARISTA SIMULATOR",
+            "",
+            "1. Start New Game",
+            "2. Login / Register",
+            "3. View Statistics",
+            "4. Tutorial",
+            "5. Leaderboard",
+            "6. Achievements",
+            "7. Credits",
+            "8. Exit",
+            ""
+        );
+        private static final List<String> LOGIN_MENU = Arrays.asList(
+            "",
+            "USER PROFILE",
+            "",
+            "1. Login",
+            "2. Register",
+            ""
+        );
+        private static final List<String> TUTORIAL = Arrays.asList("TUTORIAL", "1. Read Order", "2. Type ingredients separated by commas", "3. Press Enter", "");
+        private static final List<String> CREDITS = Arrays.asList("", "Created by Java Barista Team.", "");
+        private static final List<String> EXIT_MESSAGE = Arrays.asList("", "Thanks for playing!", "");
+
+        public int showMainMenu() {
+            renderer.drawStaticFrame(MAIN_MENU, "Select an option [1-8]");
+            return getNumericInput(1, 8);
+        }
+        
+        public int showLoginMenu() {
+            renderer.drawStaticFrame(LOGIN_MENU, "Select Option [1-2]");
+            return getNumericInput(1, 2);
+        }
+
+        // Note: Customer Interaction handled directly in GameManager to access logic variables easily
+        // for input loops
+
+        public void showOrderResult(boolean success, Order o) {
+            List<String> content = new ArrayList<>();
+            content.add(success ? "ORDER SUCCESS!" : "ORDER FAILED!");
+            content.add("");
+            if(success) {
+                content.add("Score Earned: " + o.calculateScore());
+                content.add("Customer is happy!");
+            } else {
+                content.add("You missed an ingredient.");
+                content.add("Customer left angry.");
+            }
+            content.add("");
+            renderer.drawFrame(content, "Press Enter to continue...");
+            scanner.nextLine();
+        }
+
+        /** saveReport, when not null, is shown under the render stats. */
+        public void showDailySummary(int day, int made, int missed, int score, String saveReport) {
+            List<String> content = new ArrayList<>(Arrays.asList(
+                "DAY " + day + " COMPLETE",
+                "",
+                "Orders Made: " + made,
+                "Orders Missed: " + missed,
+                "Total Score: " + score,
+                ""
+            ));
+            if (RenderSystem.REPORT_STATS) {
+                content.add(renderer.closeDayReport());
+                content.add("");
+            }
+            if (saveReport != null) {
+                content.add(saveReport);
+                content.add("");
+            }
+            renderer.drawFrame(content, "Press Enter for next day...");
+            scanner.nextLine();
+        }
+
+        public void showMessage(String msg) {
+            renderer.drawFrame(Arrays.asList("", msg, ""), "Press Enter...");
+            scanner.nextLine();
+        }
+        
+        public void showStatistics(Player p) {
+            renderer.drawFrame(Arrays.asList("PLAYER STATS", "Name: " + p.getUsername(), "Score: " + p.getTotalScore(), ""), "Press Enter...");
+            scanner.nextLine();
+        }
+        
+        public void showTutorial() {
+            renderer.drawStaticFrame(TUTORIAL, "Press Enter...");
+            scanner.nextLine();
+        }
+        
+        // Entries per leaderboard page, leaving room in the frame for the title and footer
+        static final int LEADERBOARD_PAGE = 20;
+
+        /**
+         * Draws one page of the named board, whose first entry has the zero-based rank firstRank, and
+         * returns the lower-cased reply: "n" or "p" to change page, "d", "w" or "a" to switch board,
+         * anything else to leave. playerRank is the logged-in player's zero-based rank, or -1 to leave it out.
+         */
+        public String showLeaderboard(String board, List<Map.Entry<String, Integer>> entries, int firstRank, int page, int pages, int playerRank, int total) {
+            List<String> content = new ArrayList<>();
+            content.add("LEADERBOARD - " + board.toUpperCase());
+            content.add("");
+            int rank = firstRank;
+            for(var e : entries) content.add(++rank + ". " + e.getKey() + " : " + e.getValue());
+            content.add("");
+            content.add("Page " + (page + 1) + " of " + pages);
+            if (playerRank >= 0) content.add("Your rank: #" + (playerRank + 1) + " of " + total);
+            content.add("");
+            String paging = pages > 1 ? "N/P = next/previous page, " : "";
+            renderer.drawFrame(content, paging + "D = today, W = last 7 days, A = all time, Enter = back");
+            return scanner.nextLine().trim().toLowerCase();
+        }
+        
+        public void showAchievements(List<String> list) {
+            List<String> content = new ArrayList<>();
+            content.add("ACHIEVEMENTS");
+            for(String s : list) content.add("* " + s);
+            content.add("");
+            renderer.drawFrame(content, "Press Enter...");
+            scanner.nextLine();
+        }
+        
+        public void showCredits() { showStaticMessage(CREDITS); }
+        public void showExitMessage() { showStaticMessage(EXIT_MESSAGE); }
+
+        private void showStaticMessage(List<String> content) {
+            renderer.drawStaticFrame(content, "Press Enter...");
+            scanner.nextLine();
+        }
+        
+        public String getTextInput(String prompt) {
+            // Draw an empty frame with just the prompt at the bottom
+            renderer.drawFrame(Arrays.asList(""), prompt);
+            return scanner.nextLine();
+        }
+
+        public int getNumericInput(int min, int max) {
+            while (true) {
+                try {
+                    String in = scanner.nextLine();
+                    int i = Integer.parseInt(in);
+                    if (i >= min && i <= max) return i;
+                } catch (Exception e) {}
+                // If invalid, just wait for next input (or you could redraw)
+                renderer.showInputMarker();
+            }
+        }
+    }
+
+    static class AnimationManager {
+        private final RenderScheduler scheduler;
+        private UserInterface ui;
+        
+        public AnimationManager(UserInterface ui, RenderScheduler scheduler) {
+            this.ui = ui;
+            this.scheduler = scheduler;
+        }
+        
+        // Sprite animations, compiled to delta streams once when the class loads
+        private static final Sprite DOOR = new Sprite(
+            " _______ ",
+            "|  ___  |",
+            "| |   | |",
+            "| |   | |",
+            "| |  o| |",
+            "| |   | |",
+            "|_|___|_|"
+        );
+        private static final Sprite COUNTER = new Sprite(
+            " _____________ ",
+            "|   BARISTA   |",
+            "|_____________|"
+        );
+        private static final Sprite[] WALKER = {
+            new Sprite(" ( ^_^ ) ", "  / | \\  ", "   / \\   "),
+            new Sprite(" ( ^_^ ) ", "  / | \\  ", "   | |   ")
+        };
+        private static final Sprite[] CHEER = {
+            new Sprite("\\(^o^)/"),
+            new Sprite(" (^o^) ")
+        };
+        private static final CompiledAnimation WALK_IN = new AsciiAnimation("walk-in", 14, 70)
+                .still(DOOR, 10, 9)
+                .still(COUNTER, 64, 13)
+                .text("The door opens...", 3, 0)
+                .path(WALKER, new int[] {0, 13}, new int[] {11, 50}, new int[] {13, 13})
+                .compile();
+        private static final CompiledAnimation CHEER_JUMP = new AsciiAnimation("cheer", 6, 160)
+                .path(CHEER, new int[] {0, 1, 2, 3, 4, 5}, new int[] {44, 44, 44, 44, 44, 44}, new int[] {12, 10, 12, 10, 12, 12})
+                .text("Thank you!!", 15, 0)
+                .compile();
+
+        // Constant cutscene frames, drawn through the renderer's frame cache
+        private static final List<String> INTRO_FRAME = Arrays.asList(
+            "   ___           _     _         ",
+            "  | _ ) __ _ _ _(_)__| |_ __ _   ",
+            "  | _ \\/ _` | '_| (_-<  _/ _` |  ",
+            "  |___/\\__,_|_| |_/__/\\__\\__,_|  ",
+            "",
+            "The Ultimate Barista Simulator",
+            "",
+            "Loading..."
+        );
+        private static final List<String> UNHAPPY_FRAME = Arrays.asList(
+            "",
+            "   (>_<)   ",
+            "This isn't what I ordered!",
+            ""
+        );
+        
+        // Every animation is queued on the render thread and returns immediately
+        public void playIntroCutscene() {
+            scheduler.play(Keyframe.ofStatic(INTRO_FRAME, 2000));
+        }
+        
+        public void showCustomerArrival(Customer c) {
+            scheduler.play(WALK_IN);
+            List<String> frame = Arrays.asList(
+                "The door opens...",
+                "",
+                "      ( ^_^ )      ",
+                "       / | \\       ",
+                "        / \\        ",
+                "",
+                c.getName() + " walks in."
+            );
+            scheduler.play(Keyframe.of(frame, 800));
+        }
+        
+        public void showHappyCustomer() {
+            scheduler.play(CHEER_JUMP);
+        }
+        
+        public void showUnhappyCustomer() {
+            scheduler.play(Keyframe.ofStatic(UNHAPPY_FRAME, 1000));
+        }
+        
+        public void playDayTransition(int day) {
+            // Only seven distinct days, so these stay resident in the frame cache
+            scheduler.play(Keyframe.ofStatic(Arrays.asList("", "", "DAY " + day, "", "The sun rises..."), 1500));
+        }
+        
+        public void playEndingCutscene(int stars) {
+            scheduler.play(Keyframe.of(Arrays.asList("GAME OVER", "", "Rating: " + stars + " Stars", "", "Thank you for playing!"), 2000));
+        }
+    }
+
+    static class StoryManager {
+        private final Renderer renderer;
+        private UserInterface ui;
+        
+        public StoryManager(UserInterface ui, Renderer renderer) {
+            this.ui = ui;
+            this.renderer = renderer;
+        }
+
+        public void showGameStartCutscene(String name) {
+            List<String> content = Arrays.asList(
+                "Welcome, " + name + ".",
+                "You have just opened your first shop.",
+                "The rent is due in 7 days.",
+                "Make the best tea in the city.",
+                ""
+            );
+            renderer.drawFrame(content, "Press Enter to open shop...");
+            ui.scanner.nextLine();
+        }
+        public void showDayIntro(int day) {
+            // Handled by AnimationManager
+        }
+    }
+
+    // ==========================================
+    //               DATA LAYER
     // ==========================================
-    //               MODEL LAYER
-    // ==========================================
 
-    static class Player implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private String username;
-        private int totalScore;
-        private int gamesPlayed;
-        private int daysPlayed;
-        
-        public Player(String username) { this.username = username; this.totalScore = 0; }
-        public void addScore(int score) { this.totalScore += score; }
-        public void incrementDaysPlayed() { this.daysPlayed++; }
-        public String getUsername() { return username; }
-        public int getTotalScore() { return totalScore; }
-        public int getGamesPlayed() { return gamesPlayed; }
-        public int calculateRating() {
-            if (daysPlayed == 0) return 1;
-            int avg = totalScore / daysPlayed;
-            return avg > 500 ? 5 : avg > 300 ? 4 : avg > 150 ? 3 : 2;
+    static class DataManager {
+        private static final String PLAYER_FILE = "barista_players.dat";
+        static final String LEADERBOARD_FILE = "barista_leaderboard.dat";
+        private static final String SCORE_DAYS_FILE = "barista_leaderboard_days.dat";
+
+        // -Dbarista.compactIntervalSec sets how often the background compactor checks the player log
+        private static final long COMPACT_INTERVAL_SEC = Long.getLong("barista.compactIntervalSec", 60);
+        // -Dbarista.shards sets the shard count for a new player store; existing ones change only through reshard
+        private static final int SHARDS = Integer.getInteger("barista.shards", 0);
+
+        // -Dbarista.ioThreads and -Dbarista.ioQueue size the storage executor. When its queue is full the
+        // submitting thread runs the task itself, so producers slow down instead of queueing without bound
+        private static final int IO_THREADS = Integer.getInteger("barista.ioThreads", 2);
+        private static final int IO_QUEUE = Integer.getInteger("barista.ioQueue", 64);
+
+        /** A storage operation run on the I/O executor. */
+        interface IOTask<T> {
+            T call() throws IOException;
+        }
+
+        private final File playerFile = new File(PLAYER_FILE);
+        private PlayerShards players;
+        private ScheduledExecutorService compactor;
+        private final ThreadPoolExecutor io;
+        // Tail of the queued writes of each file. A file's writes run one after another in the order
+        // they were submitted, so an older snapshot can never be renamed over a newer one
+        private final Map<String, CompletableFuture<?>> fileWrites = new HashMap<>();
+        // Where failures and warnings from work nobody waits on (timed flushes, compaction) go
+        private volatile Consumer<String> notices = System.err::println;
+
+        public DataManager() {
+            AtomicInteger threads = new AtomicInteger();
+            io = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(IO_QUEUE), r -> {
+                Thread t = new Thread(r, "barista-io-" + threads.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+
+        /** Runs the task on the I/O executor; the future fails with whatever the task threw. */
+        public <T> CompletableFuture<T> submit(IOTask<T> task) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            Runnable run = () -> {
+                try {
+                    result.complete(task.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            };
+            // CallerRunsPolicy silently drops tasks once the executor is shut down, so run those here
+            if (io.isShutdown()) run.run();
+            else io.execute(run);
+            return result;
+        }
+
+        /** Like submit, but the task only starts once every earlier write of the same file has finished. */
+        public <T> CompletableFuture<T> submitWrite(String file, IOTask<T> task) {
+            synchronized (fileWrites) {
+                CompletableFuture<?> previous = fileWrites.getOrDefault(file, CompletableFuture.completedFuture(null));
+                CompletableFuture<T> write = previous.handle((done, error) -> null).thenCompose(v -> submit(task));
+                fileWrites.put(file, write);
+                return write;
+            }
+        }
+
+        /** Sends background failures and warnings to the handler instead of stderr, e.g. to show them in the game. */
+        public void onNotice(Consumer<String> handler) { notices = handler; }
+
+        void notice(String message) { notices.accept(message); }
+
+        public CompletableFuture<Player> loadPlayerAsync(String username) { return submit(() -> loadPlayer(username)); }
+
+        public CompletableFuture<Void> savePlayersAsync(Collection<Player> batch) {
+            return submit(() -> {
+                savePlayers(batch);
+                return null;
+            });
+        }
+
+        public CompletableFuture<LeaderboardCodec.Saved<Map<String, Integer>>> loadLeaderboardAsync() { return submit(this::loadLeaderboard); }
+
+        public CompletableFuture<LeaderboardCodec.Saved<Map<Long, Map<String, Integer>>>> loadScoreDaysAsync() { return submit(this::loadScoreDays); }
+
+        /** The buckets are copied by the caller, see ScoreBoards.days(). */
+        public CompletableFuture<Void> saveScoreDaysAsync(Map<Long, Map<String, Integer>> days, Leaderboard.ScorePolicy policy) {
+            return submitWrite(SCORE_DAYS_FILE, () -> {
+                saveScoreDays(days, policy);
+                return null;
+            });
+        }
+
+        /** The map is copied before this returns, so the caller may keep changing it. */
+        public CompletableFuture<Void> saveLeaderboardAsync(Map<String, Integer> map, Leaderboard.ScorePolicy policy) {
+            Map<String, Integer> snapshot = new HashMap<>(map);
+            return submitWrite(LEADERBOARD_FILE, () -> {
+                saveLeaderboard(snapshot, policy);
+                return null;
+            });
+        }
+
+        /** The stored profile, or null if there is none; storage failures are thrown rather than read as "not found". */
+        public Player loadPlayer(String username) throws IOException {
+            return players().shardFor(username).find(username);
+        }
+
+        public void savePlayer(Player p) throws IOException {
+            savePlayers(Collections.singletonList(p));
+        }
+
+        /**
+         * Appends every profile to its shard, then returns once one fsync per touched shard covers them
+         * all. Profiles whose stored version moved on are skipped and reported together afterwards.
+         */
+        public void savePlayers(Collection<Player> batch) throws IOException {
+            PlayerShards shards = players();
+            Set<PlayerLog> touched = new LinkedHashSet<>();
+            List<String> stale = new ArrayList<>();
+            for (Player p : batch) {
+                PlayerLog log = shards.shardFor(p.getUsername());
+                try {
+                    log.append(p);
+                    touched.add(log);
+                } catch (StaleProfileException e) {
+                    stale.add(p.getUsername());
+                }
+            }
+            for (PlayerLog log : touched) log.sync();
+            if (!stale.isEmpty()) throw new StaleProfileException(stale);
+        }
+
+        // Opened on first use; files from before the binary codec are converted first, the original kept as .bak
+        private synchronized PlayerShards players() throws IOException {
+            if (players == null) {
+                if (PlayerCodec.isLegacy(playerFile)) PlayerCodec.migrateLegacy(playerFile);
+                players = PlayerShards.open(playerFile, SHARDS);
+                if (SHARDS > 0 && players.count() != SHARDS) {
+                    notice("Player store has " + players.count() + " shards; stop the game and run `java BaristaGame reshard " + SHARDS + "` to change it.");
+                }
+                startCompactor(players);
+            }
+            return players;
+        }
+
+        private void startCompactor(PlayerShards shards) {
+            compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "barista-compactor");
+                t.setDaemon(true);
+                return t;
+            });
+            compactor.scheduleWithFixedDelay(() -> {
+                for (PlayerLog log : shards.openShards()) {
+                    try {
+                        if (log.needsCompaction()) log.compact();
+                    } catch (IOException e) {
+                        notice("Player log compaction failed: " + e.getMessage());
+                    }
+                }
+            }, COMPACT_INTERVAL_SEC, COMPACT_INTERVAL_SEC, TimeUnit.SECONDS);
+        }
+
+        /** Saved scores and their policy, or no scores under the configured policy before the first save. */
+        public LeaderboardCodec.Saved<Map<String, Integer>> loadLeaderboard() throws IOException {
+            File file = new File(LEADERBOARD_FILE);
+            return file.exists() ? LeaderboardCodec.read(file) : new LeaderboardCodec.Saved<>(new HashMap<>(), Leaderboard.POLICY);
+        }
+
+        public void saveLeaderboard(Map<String, Integer> map, Leaderboard.ScorePolicy policy) throws IOException {
+            LeaderboardCodec.write(new File(LEADERBOARD_FILE), map, policy);
+        }
+
+        /** Day buckets of the daily and weekly boards and their policy, or none before the first save. */
+        public LeaderboardCodec.Saved<Map<Long, Map<String, Integer>>> loadScoreDays() throws IOException {
+            File file = new File(SCORE_DAYS_FILE);
+            return file.exists() ? LeaderboardCodec.readDays(file) : new LeaderboardCodec.Saved<>(new TreeMap<>(), Leaderboard.POLICY);
+        }
+
+        public void saveScoreDays(Map<Long, Map<String, Integer>> days, Leaderboard.ScorePolicy policy) throws IOException {
+            LeaderboardCodec.writeDays(new File(SCORE_DAYS_FILE), days, policy);
+        }
+
+        /** Lets queued storage work finish, stops the compactor and closes the player log cleanly, so the next start can trust its index. */
+        public synchronized void close() throws IOException {
+            io.shutdown();
+            try {
+                io.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // A compaction already running is let finish: interrupting it would close the log's channel under it
+            if (compactor != null) {
+                compactor.shutdown();
+                try {
+                    compactor.awaitTermination(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (players != null) players.close();
+            players = null;
+        }
+    }
+
+    /**
+     * Write-behind cache in front of the DataManager. save() only records a snapshot of the player;
+     * repeated saves of the same player before the next flush collapse into one write. Pending
+     * snapshots are written on a timer, when flush() is called at game end, and by a shutdown hook.
+     */
+    static class PlayerCache {
+        // -Dbarista.flushIntervalMs sets how often pending saves are written; -Dbarista.saveStats reports them each day
+        private static final long FLUSH_INTERVAL_MS = Long.getLong("barista.flushIntervalMs", 5000);
+        static final boolean REPORT_STATS = Boolean.getBoolean("barista.saveStats");
+
+        private final DataManager dataManager;
+        private final Map<String, Player> dirty = new LinkedHashMap<>();
+        // Stored version of each profile as this game last saw it, which its next write must be based on
+        private final Map<String, Integer> versions = new HashMap<>();
+        private final Object flushLock = new Object();
+        private final ScheduledExecutorService flusher;
+
+        private long saves, coalesced, written, conflicts, flushes;
+        private long lastFlushNanos, maxFlushNanos;
+
+        public PlayerCache(DataManager dataManager) {
+            this.dataManager = dataManager;
+            this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "barista-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(() -> flushAsync().exceptionally(e -> {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                dataManager.notice("Saving players failed: " + cause.getMessage());
+                return null;
+            }), FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                flushQuietly();
+                try {
+                    dataManager.close();
+                } catch (IOException e) {
+                    System.err.println("Closing player store failed: " + e.getMessage());
+                }
+            }, "barista-flush-on-exit"));
+        }
+
+        public synchronized void save(Player p) {
+            saves++;
+            if (dirty.put(p.getUsername(), p.copy()) != null) coalesced++;
+        }
+
+        /** A pending save wins over the stored profile, so a player sees their own unflushed progress. */
+        public CompletableFuture<Player> loadAsync(String username) {
+            synchronized (this) {
+                Player pending = dirty.get(username);
+                if (pending != null) return CompletableFuture.completedFuture(pending.copy());
+            }
+            return dataManager.loadPlayerAsync(username).thenApply(stored -> {
+                if (stored != null) {
+                    synchronized (this) { versions.put(username, stored.getVersion()); }
+                }
+                return stored;
+            });
+        }
+
+        /** flush() on the DataManager's I/O executor. */
+        public CompletableFuture<Void> flushAsync() {
+            return dataManager.submit(() -> {
+                flush();
+                return null;
+            });
+        }
+
+        /**
+         * Writes every pending snapshot with one fsync per shard. Snapshots of profiles another game
+         * saved in the meantime are dropped and reported through StaleProfileException; after any
+         * other failure every snapshot stays queued for the next flush.
+         */
+        public void flush() throws IOException {
+            // One flush at a time, so an older snapshot is never written after a newer one
+            synchronized (flushLock) {
+                List<Player> batch;
+                synchronized (this) {
+                    if (dirty.isEmpty()) return;
+                    batch = new ArrayList<>(dirty.values());
+                    dirty.clear();
+                    for (Player p : batch) {
+                        Integer known = versions.get(p.getUsername());
+                        if (known != null) p.setVersion(known);
+                    }
+                }
+                long start = System.nanoTime();
+                List<String> stale = Collections.emptyList();
+                boolean failed = false;
+                try {
+                    dataManager.savePlayers(batch);
+                } catch (StaleProfileException e) {
+                    stale = e.getUsernames();
+                    throw e;
+                } catch (IOException | RuntimeException e) {
+                    failed = true;
+                    throw e;
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    synchronized (this) {
+                        for (Player p : batch) {
+                            if (stale.contains(p.getUsername())) {
+                                conflicts++;
+                                continue;
+                            }
+                            versions.put(p.getUsername(), p.getVersion());
+                            if (failed) dirty.putIfAbsent(p.getUsername(), p);
+                            else written++;
+                        }
+                        flushes++;
+                        lastFlushNanos = elapsed;
+                        maxFlushNanos = Math.max(maxFlushNanos, elapsed);
+                    }
+                }
+            }
+        }
+
+        private void flushQuietly() {
+            try {
+                flush();
+            } catch (IOException e) {
+                System.err.println("Saving players failed: " + e.getMessage());
+            }
+        }
+
+        public synchronized String report() {
+            return String.format("Saves: %d requested, %d coalesced, %d written, %d conflicts in %d flushes (last %.2f ms, max %.2f ms)",
+                    saves, coalesced, written, conflicts, flushes, lastFlushNanos / 1e6, maxFlushNanos / 1e6);
+        }
+    }
+
+    /**
+     * Versioned binary layout for player profiles, replacing Java serialization of the whole map.
+     *
+     * File:   magic "BRST" (int), schema version (short), then records up to end of file.
+     * Record (v1): username byte length (short) + UTF-8 bytes, totalScore, gamesPlayed, daysPlayed (ints).
+     * Record (v2): v1 fields followed by a CRC32 of them (int), so torn or damaged records are detected.
+     * Record (v3): v1 fields, the profile's version (int), then the CRC32.
+     *
+     * Readers dispatch on the schema version so older files keep loading after the layout changes;
+     * upgrade() rewrites an older file in the current layout. Files written by the old
+     * ObjectOutputStream code are recognized by the serialization stream magic and converted by
+     * migrateLegacy().
+     */
+    static class PlayerCodec {
+        static final int MAGIC = 0x42525354; // "BRST"
+        static final short VERSION = 3;
+        static final int HEADER_SIZE = 6;
+        private static final int SERIALIZATION_MAGIC = 0xACED;
+
+        public static void writeHeader(DataOutput out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+        }
+
+        public static void writeRecord(DataOutput out, Player p) throws IOException {
+            out.write(encodeRecord(p).array());
+        }
+
+        /** Validates the header and returns the file's schema version. */
+        public static short readHeader(ByteBuffer in) throws IOException {
+            if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC) throw new IOException("Not a player file");
+            short version = in.getShort();
+            if (version < 1 || version > VERSION) throw new IOException("Unsupported player file version " + version);
+            return version;
+        }
+
+        public static Player readRecord(ByteBuffer in, short version) throws IOException {
+            int start = in.position();
+            byte[] name = new byte[in.getShort() & 0xFFFF];
+            in.get(name);
+            Player p = new Player(new String(name, StandardCharsets.UTF_8), in.getInt(), in.getInt(), in.getInt());
+            if (version >= 3) p.setVersion(in.getInt());
+            if (version >= 2) {
+                if (!isIntact(in, start, recordSize(version, name.length))) throw new IOException("Damaged player record at " + start);
+                in.getInt();
+            }
+            return p;
+        }
+
+        /** Bytes a current-version record occupies for a username of the given encoded length. */
+        public static int recordSize(int nameLength) { return recordSize(VERSION, nameLength); }
+
+        public static int recordSize(short version, int nameLength) {
+            return 2 + nameLength + 12 + (version >= 3 ? 4 : 0) + (version >= 2 ? 4 : 0);
+        }
+
+        /** Whether the checksummed (v2+) record of the given size at start still matches its checksum. */
+        public static boolean isIntact(ByteBuffer in, int start, int size) {
+            CRC32 crc = new CRC32();
+            ByteBuffer fields = in.duplicate();
+            fields.limit(start + size - 4).position(start);
+            crc.update(fields);
+            return (int) crc.getValue() == in.getInt(start + size - 4);
+        }
+
+        public static ByteBuffer encodeRecord(Player p) {
+            byte[] name = p.getUsername().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(recordSize(name.length));
+            record.putShort((short) name.length).put(name);
+            record.putInt(p.getTotalScore()).putInt(p.getGamesPlayed()).putInt(p.getDaysPlayed()).putInt(p.getVersion());
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, record.position());
+            record.putInt((int) crc.getValue());
+            record.flip();
+            return record;
+        }
+
+        /** Encoded username of the record starting at the buffer's position, which is left unchanged. */
+        public static String peekUsername(ByteBuffer in) {
+            int length = in.getShort(in.position()) & 0xFFFF;
+            byte[] name = new byte[length];
+            for (int i = 0; i < length; i++) name[i] = in.get(in.position() + 2 + i);
+            return new String(name, StandardCharsets.UTF_8);
+        }
+
+        public static void writeAll(File file, Collection<Player> players) throws IOException {
+            AtomicFiles.write(file, stream -> {
+                DataOutputStream out = new DataOutputStream(stream);
+                writeHeader(out);
+                for (Player p : players) writeRecord(out, p);
+                out.flush();
+            });
+        }
+
+        /** Rewrites a file from an older schema version in the current one, keeping each player's latest record. */
+        public static void upgrade(File file) throws IOException {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            short version = readHeader(in);
+            Map<String, Player> latest = new LinkedHashMap<>();
+            while (in.remaining() >= 2 && in.remaining() >= recordSize(version, in.getShort(in.position()) & 0xFFFF)) {
+                Player p = readRecord(in, version);
+                latest.put(p.getUsername(), p);
+            }
+            writeAll(file, latest.values());
+            Files.deleteIfExists(PlayerIndex.fileFor(file).toPath());
+        }
+
+        public static boolean isLegacy(File file) throws IOException {
+            if (!file.exists() || file.length() < 2) return false;
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                return in.readUnsignedShort() == SERIALIZATION_MAGIC;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public static Map<String, Player> readLegacy(File file) throws IOException {
+            try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                return (Map<String, Player>) ois.readObject();
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new IOException("Unreadable legacy player file", e);
+            }
+        }
+
+        public static void migrateLegacy(File file) throws IOException {
+            Map<String, Player> players = readLegacy(file);
+            Files.copy(file.toPath(), new File(file.getPath() + ".bak").toPath(), StandardCopyOption.REPLACE_EXISTING);
+            writeAll(file, players.values());
+            // Any index beside the old file points at offsets that no longer exist
+            Files.deleteIfExists(PlayerIndex.fileFor(file).toPath());
         }
     }
 
-    static class Customer {
-        private String name;
-        private boolean isVip;
-        private Order order;
-        public Customer(String name, boolean isVip) { this.name = name; this.isVip = isVip; }
-        public void setOrder(Order order) { this.order = order; }
-        public Order getOrder() { return order; }
-        public String getName() { return name; }
-        public boolean isVip() { return isVip; }
-        public String getGreeting() { return isVip ? "I expect perfection." : "Hi! Can I get a drink?"; }
+    /**
+     * Leaderboard file: (name, score) records in rank order, highest score first, packed into a
+     * BlockSnapshot, so a page of the board inflates only the blocks it spans. Files saved by older
+     * versions as a serialized map are still read.
+     *
+     * Record: name length (short), UTF-8 name, score (int).
+     */
+    static class LeaderboardCodec {
+        static final int MAGIC = 0x424C4244; // "BLBD"
+        static final int DAYS_MAGIC = 0x42444159; // "BDAY"
+        static final short DAYS_VERSION = 2;
+        private static final int SERIALIZATION_MAGIC = 0xACED;
+
+        /** Saved scores and the policy that combined them, which a board must keep using. */
+        static class Saved<T> {
+            final T scores;
+            final Leaderboard.ScorePolicy policy;
+
+            Saved(T scores, Leaderboard.ScorePolicy policy) {
+                this.scores = scores;
+                this.policy = policy;
+            }
+        }
+
+        /** Rank order: highest score first, ties by name. */
+        static final Comparator<Map.Entry<String, Integer>> RANK_ORDER =
+                Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey());
+
+        /** The policy goes in the snapshot tag. */
+        public static void write(File file, Map<String, Integer> scores, Leaderboard.ScorePolicy policy) throws IOException {
+            List<Map.Entry<String, Integer>> ranked = new ArrayList<>(scores.entrySet());
+            ranked.sort(RANK_ORDER);
+            AtomicFiles.write(file, stream -> {
+                BlockSnapshot.Writer out = new BlockSnapshot.Writer(stream, MAGIC, policy.ordinal());
+                for (Map.Entry<String, Integer> entry : ranked) {
+                    byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer record = ByteBuffer.allocate(2 + name.length + 4);
+                    record.putShort((short) name.length).put(name).putInt(entry.getValue()).flip();
+                    out.add(name, record);
+                }
+                out.finish();
+            });
+        }
+
+        /** Files saved before the policy was recorded hold each player's running total, so they read as SUM. */
+        public static Saved<Map<String, Integer>> read(File file) throws IOException {
+            if (isLegacy(file)) return new Saved<>(readLegacy(file), Leaderboard.ScorePolicy.SUM);
+            Map<String, Integer> scores = new HashMap<>();
+            try (BlockSnapshot snapshot = BlockSnapshot.open(file, MAGIC)) {
+                for (int block = 0; block < snapshot.blocks(); block++) {
+                    ByteBuffer in = snapshot.read(block);
+                    while (in.hasRemaining()) {
+                        Map.Entry<String, Integer> entry = readRecord(in);
+                        scores.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                return new Saved<>(scores, snapshot.tag() < 0 ? Leaderboard.ScorePolicy.SUM : policyOf(snapshot.tag(), file));
+            }
+        }
+
+        /** Up to count entries starting at the zero-based rank from, inflating only the blocks they sit in. */
+        public static List<Map.Entry<String, Integer>> readRange(File file, int from, int count) throws IOException {
+            List<Map.Entry<String, Integer>> page = new ArrayList<>();
+            if (isLegacy(file)) {
+                List<Map.Entry<String, Integer>> ranked = new ArrayList<>(readLegacy(file).entrySet());
+                ranked.sort(RANK_ORDER);
+                return new ArrayList<>(ranked.subList(Math.min(from, ranked.size()), Math.min(from + count, ranked.size())));
+            }
+            try (BlockSnapshot snapshot = BlockSnapshot.open(file, MAGIC)) {
+                int block = snapshot.blockAt(from);
+                if (block < 0) return page;
+                long rank = snapshot.firstOrdinal(block);
+                for (; block < snapshot.blocks() && page.size() < count; block++) {
+                    ByteBuffer in = snapshot.read(block);
+                    while (in.hasRemaining() && page.size() < count) {
+                        Map.Entry<String, Integer> entry = readRecord(in);
+                        if (rank++ >= from) page.add(entry);
+                    }
+                }
+            }
+            return page;
+        }
+
+        /**
+         * Day buckets of the windowed boards: magic "BDAY" (int), version (short), score policy (short,
+         * from version 2), day count (int), then per day its epoch day (long), entry count (int) and
+         * entries as in the leaderboard file.
+         */
+        public static void writeDays(File file, Map<Long, Map<String, Integer>> days, Leaderboard.ScorePolicy policy) throws IOException {
+            AtomicFiles.write(file, stream -> {
+                DataOutputStream out = new DataOutputStream(stream);
+                out.writeInt(DAYS_MAGIC);
+                out.writeShort(DAYS_VERSION);
+                out.writeShort(policy.ordinal());
+                out.writeInt(days.size());
+                for (Map.Entry<Long, Map<String, Integer>> day : days.entrySet()) {
+                    out.writeLong(day.getKey());
+                    out.writeInt(day.getValue().size());
+                    for (Map.Entry<String, Integer> entry : day.getValue().entrySet()) {
+                        byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                        out.writeShort(name.length);
+                        out.write(name);
+                        out.writeInt(entry.getValue());
+                    }
+                }
+                out.flush();
+            });
+        }
+
+        /** Version 1 files did not record the policy; they were written under the configured one. */
+        public static Saved<Map<Long, Map<String, Integer>>> readDays(File file) throws IOException {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            try {
+                if (in.getInt() != DAYS_MAGIC) throw new IOException("Not a score days file: " + file);
+                short version = in.getShort();
+                if (version < 1 || version > DAYS_VERSION) throw new IOException("Unsupported score days version in " + file);
+                Leaderboard.ScorePolicy policy = version == 1 ? Leaderboard.POLICY : policyOf(in.getShort() & 0xFFFF, file);
+                Map<Long, Map<String, Integer>> days = new TreeMap<>();
+                for (int d = in.getInt(); d > 0; d--) {
+                    long day = in.getLong();
+                    Map<String, Integer> bucket = new HashMap<>();
+                    for (int n = in.getInt(); n > 0; n--) {
+                        Map.Entry<String, Integer> entry = readRecord(in);
+                        bucket.put(entry.getKey(), entry.getValue());
+                    }
+                    days.put(day, bucket);
+                }
+                return new Saved<>(days, policy);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated score days file " + file, e);
+            }
+        }
+
+        private static Leaderboard.ScorePolicy policyOf(int ordinal, File file) throws IOException {
+            Leaderboard.ScorePolicy[] policies = Leaderboard.ScorePolicy.values();
+            if (ordinal >= policies.length) throw new IOException("Unknown score policy in " + file);
+            return policies[ordinal];
+        }
+
+        private static Map.Entry<String, Integer> readRecord(ByteBuffer in) {
+            byte[] name = new byte[in.getShort() & 0xFFFF];
+            in.get(name);
+            return new AbstractMap.SimpleImmutableEntry<>(new String(name, StandardCharsets.UTF_8), in.getInt());
+        }
+
+        private static boolean isLegacy(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                return file.length() >= 2 && in.readUnsignedShort() == SERIALIZATION_MAGIC;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Map<String, Integer> readLegacy(File file) throws IOException {
+            try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                return (Map<String, Integer>) ois.readObject();
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new IOException("Unreadable leaderboard file", e);
+            }
+        }
     }
 
-    static class Order {
-        private String drinkName;
-        private List<String> ingredients;
-        private boolean correct;
-        private double timeTaken;
+    /**
+     * Replaces a file so that a crash leaves either the old or the new contents, never a truncated
+     * mix: write a temp file, fsync it, atomically rename it over the target, then fsync the directory.
+     */
+    static class AtomicFiles {
+        private static final long PID = ProcessHandle.current().pid();
+        private static final AtomicLong TEMP_COUNTER = new AtomicLong();
 
-        public Order(String drinkName) {
-            this.drinkName = drinkName;
-            this.ingredients = generateIngredients(drinkName);
+        /** Writes the new contents; must flush any wrapping stream but not close it. */
+        interface Writer {
+            void write(OutputStream out) throws IOException;
         }
 
-        private List<String> generateIngredients(String drink) {
-            List<String> list = new ArrayList<>();
-            list.add("Tea"); list.add("Milk");
-            if (drink.contains("Taro")) list.add("Taro");
-            if (drink.contains("Matcha")) list.add("Matcha");
-            if (drink.contains("Strawberry")) list.add("Strawberry");
-            if (drink.contains("Sugar")) list.add("Brown Sugar");
-            if (drink.contains("Boba")) list.add("Tapioca");
-            return list;
+        public static void write(File target, Writer writer) throws IOException {
+            commit(prepare(target, writer), target);
         }
 
-        public boolean checkCorrectness(String input) {
-            if (input == null || input.isEmpty()) return false;
-            String[] parts = input.split(",");
-            List<String> provided = new ArrayList<>();
-            for (String p : parts) provided.add(p.trim().toLowerCase());
-            for (String req : ingredients) {
-                boolean found = false;
-                for (String p : provided) {
-                    if (p.contains(req.toLowerCase())) { found = true; break; }
+        /**
+         * Writes and syncs a temp file beside the target, leaving the target untouched. Each call gets
+         * its own temp file, named by process and call, so overlapping writes of one target never
+         * share it. It is created with the umask's permissions like any other game file, not
+         * createTempFile's owner-only ones, so games run by other users can still replace it.
+         */
+        public static File prepare(File target, Writer writer) throws IOException {
+            File temp;
+            while (true) {
+                temp = new File(target.getAbsoluteFile().getParentFile(),
+                        target.getName() + "." + PID + "." + TEMP_COUNTER.incrementAndGet() + ".tmp");
+                try {
+                    Files.createFile(temp.toPath());
+                    break;
+                } catch (FileAlreadyExistsException e) {
+                    // Left by a crashed game that had the same process id; take the next number
                 }
-                if (!found) return false;
+            }
+            try (FileOutputStream file = new FileOutputStream(temp)) {
+                OutputStream out = new BufferedOutputStream(file, 1 << 16);
+                writer.write(out);
+                out.flush();
+                file.getFD().sync();
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temp.toPath());
+                throw e;
+            }
+            return temp;
+        }
+
+        public static void commit(File temp, File target) throws IOException {
+            try {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            syncDirectory(target);
+        }
+
+        // Makes the rename itself durable; directories cannot be opened for this everywhere (Windows), so it is best effort
+        private static void syncDirectory(File file) {
+            try (FileChannel dir = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+                dir.force(true);
+            } catch (IOException e) {}
+        }
+    }
+
+    /**
+     * Immutable file of sorted records packed into Deflate-compressed blocks of about 16 KB, with a
+     * block index at the end, so a reader inflates only the block holding the key or position it
+     * wants instead of the whole file.
+     *
+     * Layout:  magic (int), format version (short), tag (short, from version 2), compressed blocks,
+     *          block index, trailer. The tag is a value of the owning format, such as the leaderboard's
+     *          score policy.
+     * Index:   per block: first key (short length + bytes), file offset (long), compressed size,
+     *          raw size, record count (ints).
+     * Trailer: index offset (long), block count (int), magic (int).
+     */
+    static class BlockSnapshot implements Closeable {
+        static final short VERSION = 2;
+        static final int BLOCK_BYTES = 16 * 1024;
+        private static final int HEADER_SIZE = 8, TRAILER_SIZE = 16;
+        // Version 1 had no tag
+        private static final int V1_HEADER_SIZE = 6;
+
+        private final FileChannel channel;
+        private final byte[][] firstKeys;
+        private final long[] offsets;
+        private final int[] compressedSizes, rawSizes;
+        // Records before each block; the extra last entry is the total
+        private final long[] firstOrdinals;
+        private int tag = -1;
+
+        private BlockSnapshot(FileChannel channel, int blocks) {
+            this.channel = channel;
+            firstKeys = new byte[blocks][];
+            offsets = new long[blocks];
+            compressedSizes = new int[blocks];
+            rawSizes = new int[blocks];
+            firstOrdinals = new long[blocks + 1];
+        }
+
+        /** Reads the block index of the file, or returns an empty snapshot if there is no file. */
+        public static BlockSnapshot open(File file, int magic) throws IOException {
+            if (!file.exists()) return new BlockSnapshot(null, 0);
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                if (size < V1_HEADER_SIZE + TRAILER_SIZE) throw new IOException("Truncated snapshot " + file);
+                ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+                ByteBuffer trailer = readFully(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+                if (header.getInt() != magic || trailer.getInt(12) != magic) throw new IOException("Not a snapshot: " + file);
+                short version = header.getShort();
+                if (version < 1 || version > VERSION) throw new IOException("Unsupported snapshot version in " + file);
+                int headerSize = version == 1 ? V1_HEADER_SIZE : HEADER_SIZE;
+                long indexOffset = trailer.getLong(0);
+                int blocks = trailer.getInt(8);
+                if (indexOffset < headerSize || indexOffset > size - TRAILER_SIZE || blocks < 0) throw new IOException("Damaged snapshot " + file);
+                ByteBuffer index = readFully(channel, indexOffset, (int) (size - TRAILER_SIZE - indexOffset));
+                BlockSnapshot snapshot = new BlockSnapshot(channel, blocks);
+                if (version > 1) snapshot.tag = header.getShort() & 0xFFFF;
+                for (int i = 0; i < blocks; i++) {
+                    snapshot.firstKeys[i] = new byte[index.getShort() & 0xFFFF];
+                    index.get(snapshot.firstKeys[i]);
+                    snapshot.offsets[i] = index.getLong();
+                    snapshot.compressedSizes[i] = index.getInt();
+                    snapshot.rawSizes[i] = index.getInt();
+                    snapshot.firstOrdinals[i + 1] = snapshot.firstOrdinals[i] + index.getInt();
+                }
+                return snapshot;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e instanceof IOException ? (IOException) e : new IOException("Damaged snapshot " + file, e);
+            }
+        }
+
+        private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("Snapshot ends early");
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        public int blocks() { return offsets.length; }
+
+        /** The tag the file was written with, or -1 for a version 1 file or no file. */
+        public int tag() { return tag; }
+
+        public long records() { return firstOrdinals[offsets.length]; }
+
+        /** Uncompressed size of all records. */
+        public long rawBytes() {
+            long total = 0;
+            for (int size : rawSizes) total += size;
+            return total;
+        }
+
+        /** The only block that can hold the key: the last one whose first key is not greater, or -1. */
+        public int blockFor(byte[] key) {
+            int low = 0, high = offsets.length - 1, found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (Arrays.compareUnsigned(firstKeys[mid], key) <= 0) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        /** The block holding the record at the given position in file order, or -1 past the end. */
+        public int blockAt(long ordinal) {
+            if (ordinal < 0 || ordinal >= records()) return -1;
+            int low = 0, high = offsets.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (firstOrdinals[mid] <= ordinal) low = mid;
+                else high = mid - 1;
+            }
+            return low;
+        }
+
+        public long firstOrdinal(int block) { return firstOrdinals[block]; }
+
+        /** The block's records, decompressed. */
+        public ByteBuffer read(int block) throws IOException {
+            ByteBuffer compressed = readFully(channel, offsets[block], compressedSizes[block]);
+            byte[] raw = new byte[rawSizes[block]];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed.array());
+                int length = inflater.inflate(raw);
+                if (length != raw.length || !inflater.finished()) throw new IOException("Damaged snapshot block " + block);
+            } catch (DataFormatException e) {
+                throw new IOException("Damaged snapshot block " + block, e);
+            } finally {
+                inflater.end();
+            }
+            return ByteBuffer.wrap(raw);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) channel.close();
+        }
+
+        /** Streams records into a snapshot; blockFor() only finds them if they arrive in key order. */
+        static class Writer {
+            private final CountingOutputStream out;
+            private final DataOutputStream data;
+            private final int magic;
+            private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_BYTES + 256);
+            private final Deflater deflater = new Deflater();
+            private final byte[] chunk = new byte[BLOCK_BYTES];
+            private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+            private final DataOutputStream indexData = new DataOutputStream(index);
+            private byte[] firstKey;
+            private int blockRecords, blocks;
+
+            Writer(OutputStream stream, int magic) throws IOException {
+                this(stream, magic, 0);
+            }
+
+            Writer(OutputStream stream, int magic, int tag) throws IOException {
+                out = new CountingOutputStream(stream);
+                data = new DataOutputStream(out);
+                this.magic = magic;
+                data.writeInt(magic);
+                data.writeShort(VERSION);
+                data.writeShort(tag);
+            }
+
+            public void add(byte[] key, ByteBuffer record) throws IOException {
+                if (blockRecords == 0) firstKey = key;
+                block.write(record.array(), record.arrayOffset() + record.position(), record.remaining());
+                blockRecords++;
+                if (block.size() >= BLOCK_BYTES) finishBlock();
+            }
+
+            private void finishBlock() throws IOException {
+                if (blockRecords == 0) return;
+                long offset = out.getCount();
+                deflater.reset();
+                deflater.setInput(block.toByteArray());
+                deflater.finish();
+                while (!deflater.finished()) data.write(chunk, 0, deflater.deflate(chunk));
+                indexData.writeShort(firstKey.length);
+                indexData.write(firstKey);
+                indexData.writeLong(offset);
+                indexData.writeInt((int) (out.getCount() - offset));
+                indexData.writeInt(block.size());
+                indexData.writeInt(blockRecords);
+                block.reset();
+                blockRecords = 0;
+                blocks++;
+            }
+
+            /** Writes the last block, the index and the trailer; flushes but does not close the stream. */
+            public void finish() throws IOException {
+                finishBlock();
+                deflater.end();
+                long indexOffset = out.getCount();
+                index.writeTo(data);
+                data.writeLong(indexOffset);
+                data.writeInt(blocks);
+                data.writeInt(magic);
+                data.flush();
+            }
+        }
+    }
+
+    /**
+     * Splits the player store across N PlayerLogs chosen by username hash. Each shard has its own
+     * file, index, lock and fsync, so saves of players in different shards never wait on each other,
+     * and a damaged shard only affects the players hashed to it. The shard count is recorded in a
+     * manifest beside the files and only changes through the offline reshard tool; a single shard
+     * keeps the original barista_players.dat name.
+     */
+    static class PlayerShards implements Closeable {
+        private final File base;
+        private final PlayerLog[] logs;
+
+        private PlayerShards(File base, int count) {
+            this.base = base;
+            this.logs = new PlayerLog[count];
+        }
+
+        /**
+         * Opens the store described by the manifest. Without one, a new store gets the requested count
+         * (0 = no preference, one shard) and the manifest is written. An existing store keeps its count
+         * whatever was requested; compare count() to tell.
+         */
+        public static PlayerShards open(File base, int requested) throws IOException {
+            int count = readManifest(base);
+            if (count == 0) {
+                // A player file from before sharding becomes the only shard under its existing name
+                count = base.exists() ? 1 : Math.max(1, requested);
+                writeManifest(base, count);
+            }
+            return new PlayerShards(base, count);
+        }
+
+        public int count() { return logs.length; }
+
+        public static int shardOf(String username, int count) { return Math.floorMod(username.hashCode(), count); }
+
+        public PlayerLog shardFor(String username) throws IOException { return shard(shardOf(username, logs.length)); }
+
+        /** The shard's log, opened on first use; a shard that fails to open leaves the others usable. */
+        public PlayerLog shard(int i) throws IOException {
+            synchronized (logs) {
+                if (logs[i] == null) logs[i] = PlayerLog.open(shardFile(base, i, logs.length));
+                return logs[i];
+            }
+        }
+
+        /** Shards opened so far, for background maintenance. */
+        public List<PlayerLog> openShards() {
+            synchronized (logs) {
+                List<PlayerLog> open = new ArrayList<>();
+                for (PlayerLog log : logs) if (log != null) open.add(log);
+                return open;
+            }
+        }
+
+        // barista_players.dat with one shard, otherwise barista_players.<i>-of-<n>.dat
+        public static File shardFile(File base, int shard, int count) {
+            return count == 1 ? base : new File(stem(base) + "." + shard + "-of-" + count + ".dat");
+        }
+
+        /** Every shard file named by the manifest, whether or not it has been created yet. */
+        public static List<File> files(File base) throws IOException {
+            int count = Math.max(1, readManifest(base));
+            List<File> files = new ArrayList<>();
+            for (int i = 0; i < count; i++) files.add(shardFile(base, i, count));
+            return files;
+        }
+
+        private static String stem(File base) {
+            String path = base.getPath();
+            return path.endsWith(".dat") ? path.substring(0, path.length() - 4) : path;
+        }
+
+        private static File manifestFile(File base) { return new File(stem(base) + ".shards"); }
+
+        /** Shard count from the manifest, or 0 when there is none. */
+        public static int readManifest(File base) throws IOException {
+            File manifest = manifestFile(base);
+            if (!manifest.exists()) return 0;
+            Properties props = new Properties();
+            try (InputStream in = new FileInputStream(manifest)) {
+                props.load(in);
+            }
+            try {
+                int count = Integer.parseInt(props.getProperty("shards", ""));
+                if (count < 1) throw new NumberFormatException();
+                return count;
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad shard count in " + manifest);
+            }
+        }
+
+        private static void writeManifest(File base, int count) throws IOException {
+            Properties props = new Properties();
+            props.setProperty("shards", Integer.toString(count));
+            AtomicFiles.write(manifestFile(base), out -> props.store(out, "Barista player store"));
+        }
+
+        /**
+         * Offline: copies every player into a fresh set of shard files, switches the manifest over,
+         * then deletes the old files. Until the manifest is replaced the old shards stay authoritative,
+         * so an interrupted run loses nothing and can simply be repeated. Returns the players moved.
+         */
+        public static int reshard(File base, int count) throws IOException {
+            int old = Math.max(1, readManifest(base));
+            if (old == count) return 0;
+            PlayerLog[] target = new PlayerLog[count];
+            int moved = 0;
+            try {
+                for (int i = 0; i < count; i++) {
+                    File file = shardFile(base, i, count);
+                    Files.deleteIfExists(file.toPath());
+                    Files.deleteIfExists(PlayerIndex.fileFor(file).toPath());
+                    Files.deleteIfExists(PlayerBloom.fileFor(file).toPath());
+                    Files.deleteIfExists(PlayerLog.snapshotFileFor(file).toPath());
+                    target[i] = PlayerLog.open(file);
+                }
+                for (int i = 0; i < old; i++) {
+                    File file = shardFile(base, i, old);
+                    if (!file.exists()) continue;
+                    if (PlayerCodec.isLegacy(file)) PlayerCodec.migrateLegacy(file);
+                    try (PlayerLog source = PlayerLog.open(file)) {
+                        for (Player p : source.readAll()) {
+                            target[shardOf(p.getUsername(), count)].append(p);
+                            moved++;
+                        }
+                    }
+                }
+                for (int i = 0; i < count; i++) {
+                    target[i].close();
+                    target[i] = null;
+                }
+            } finally {
+                for (PlayerLog log : target) {
+                    if (log != null) log.close();
+                }
+            }
+            writeManifest(base, count);
+            for (int i = 0; i < old; i++) {
+                File file = shardFile(base, i, old);
+                Files.deleteIfExists(file.toPath());
+                Files.deleteIfExists(PlayerIndex.fileFor(file).toPath());
+                Files.deleteIfExists(PlayerBloom.fileFor(file).toPath());
+                Files.deleteIfExists(PlayerLog.snapshotFileFor(file).toPath());
+                Files.deleteIfExists(PlayerLog.lockFileFor(file).toPath());
+            }
+            return moved;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (PlayerLog log : openShards()) log.close();
+        }
+    }
+
+    /**
+     * Append-only player store on top of PlayerCodec's file layout, which doubles as its own
+     * write-ahead journal. Each save appends one checksummed record and the PlayerIndex beside the
+     * file maps every username to the offset of its latest record, so a save is a single append and a
+     * login a single probe however many profiles exist. sync() makes appends durable with one fsync
+     * shared by every caller waiting at the time (group commit). On open, records past what the index
+     * covers are replayed into it, stopping at the first one that fails its checksum. Superseded
+     * records stay in the file until compact(), which the DataManager runs in the background, merges
+     * the live ones into a compressed BlockSnapshot sorted by username (.snap) and empties the log.
+     * The index only covers the log since then; a lookup it misses costs one block inflate in the
+     * snapshot, and a cold start with a lost index replays just that short log.
+     *
+     * Several game processes may share the files. Every read or write of the log and index happens
+     * in a short critical section under a FileChannel lock on a .lock file beside the log, which also
+     * holds a generation number that compaction bumps so other processes know to reopen the file.
+     * Records carry a version: a save must name the version it was based on, so saves of different
+     * players merge while a second save from the same starting point fails with StaleProfileException.
+     */
+    static class PlayerLog implements Closeable {
+        // Compact once dead records are at least half the file, but never bother below 64 KB
+        private static final long MIN_COMPACT_BYTES = 64 * 1024;
+        // -Dbarista.groupCommitMs sets how long an fsync waits for other saves to join it
+        private static final long GROUP_COMMIT_MS = Long.getLong("barista.groupCommitMs", 2);
+        // Lock file layout: the generation (long) is the mutex region; every process with the log open
+        // holds a shared lock on a byte far past it, so the last one out can tell it is alone
+        private static final long MUTEX_SIZE = 8, PRESENCE = 1 << 20;
+        static final int SNAPSHOT_MAGIC = 0x42534E50; // "BSNP"
+
+        private final File file;
+        private FileChannel channel;
+        private PlayerIndex index;
+        private PlayerBloom bloom;
+        private BlockSnapshot snapshot;
+        private final PlayerIndex.RecordNames names = this::nameMatches;
+        private FileChannel lockChannel;
+        private FileLock presence;
+        private long generation;
+        // Lock order: syncLock, then the log's own monitor, then the file lock
+        private final Object syncLock = new Object();
+        private long durableLength;
+
+        private interface Section<T> {
+            T run() throws IOException;
+        }
+
+        private interface SnapshotVisitor {
+            void visit(byte[] name, ByteBuffer record) throws IOException;
+        }
+
+        private PlayerLog(File file) { this.file = file; }
+
+        /** A file kept beside a player log: barista_players.dat -> barista_players.lock and so on. */
+        static File siblingOf(File log, String extension) {
+            String path = log.getPath();
+            return new File((path.endsWith(".dat") ? path.substring(0, path.length() - 4) : path) + extension);
+        }
+
+        /** The lock file for a player log: barista_players.dat -> barista_players.lock. */
+        public static File lockFileFor(File log) { return siblingOf(log, ".lock"); }
+
+        /** The compacted snapshot of a player log: barista_players.dat -> barista_players.snap. */
+        public static File snapshotFileFor(File log) { return siblingOf(log, ".snap"); }
+
+        @SuppressWarnings("try")
+        public static PlayerLog open(File file) throws IOException {
+            PlayerLog log = new PlayerLog(file);
+            log.lockChannel = FileChannel.open(lockFileFor(file).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try (FileLock mutex = log.acquireMutex()) {
+                FileLock probe = log.lockChannel.tryLock(PRESENCE, 1, false);
+                boolean alone = probe != null;
+                if (probe != null) probe.release();
+                if (log.openChannel() < PlayerCodec.VERSION) {
+                    log.channel.close();
+                    PlayerCodec.upgrade(file);
+                    log.openChannel();
+                }
+                log.generation = log.readGeneration();
+                log.snapshot = BlockSnapshot.open(snapshotFileFor(file), SNAPSHOT_MAGIC);
+                log.index = PlayerIndex.open(PlayerIndex.fileFor(file));
+                log.bloom = PlayerBloom.open(PlayerBloom.fileFor(file));
+                long covered = log.index.covered();
+                // A dirty index with nobody else attached was left by a crash and may name records that never reached the disk
+                boolean trusted = log.index.isValid() && !(alone && log.index.isDirty())
+                        && covered >= PlayerCodec.HEADER_SIZE && covered <= log.channel.size();
+                if (!trusted) {
+                    log.index.reset();
+                    log.bloom.reset(PlayerBloom.MIN_CAPACITY);
+                    covered = PlayerCodec.HEADER_SIZE;
+                }
+                log.catchUp(covered);
+                // Replaying only the tail into a new filter would miss everyone indexed before it, and
+                // replaying the whole log still misses everyone in the snapshot
+                boolean complete = trusted ? log.bloom.isValid() : log.snapshot.records() == 0;
+                if (!complete || log.bloom.isOverfull()) log.rebuildBloom();
+                log.index.markDirty();
+                log.durableLength = log.channel.size();
+                log.presence = log.lockChannel.lock(PRESENCE, 1, true);
+            } catch (IOException | RuntimeException e) {
+                if (log.snapshot != null) log.snapshot.close();
+                log.lockChannel.close();
+                throw e;
+            }
+            return log;
+        }
+
+        // Opens the file, writing the header if it is new, and returns its schema version
+        private short openChannel() throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(PlayerCodec.HEADER_SIZE);
+            if (channel.size() == 0) {
+                header.putInt(PlayerCodec.MAGIC).putShort(PlayerCodec.VERSION).flip();
+                channel.write(header, 0);
+                channel.force(true);
+                return PlayerCodec.VERSION;
+            }
+            while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {}
+            header.flip();
+            return PlayerCodec.readHeader(header);
+        }
+
+        private long readGeneration() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            while (buffer.hasRemaining() && lockChannel.read(buffer, buffer.position()) >= 0) {}
+            return buffer.position() == 8 ? buffer.getLong(0) : 0;
+        }
+
+        // Caller holds the monitor, so at most one thread per process waits on the file lock
+        @SuppressWarnings("try")
+        private <T> T locked(Section<T> section) throws IOException {
+            try (FileLock mutex = acquireMutex()) {
+                refresh();
+                return section.run();
+            }
+        }
+
+        // Polls with tryLock instead of blocking in lock(): the OS tracks these locks per process, so
+        // two processes whose threads each hold one shard while waiting on another look deadlocked to
+        // it, and a blocking lock() fails with EDEADLK
+        private FileLock acquireMutex() throws IOException {
+            long backoffNanos = 10_000;
+            FileLock mutex;
+            while ((mutex = lockChannel.tryLock(0, MUTEX_SIZE, false)) == null) {
+                LockSupport.parkNanos(backoffNanos);
+                backoffNanos = Math.min(backoffNanos * 2, 1_000_000);
+            }
+            return mutex;
+        }
+
+        // Picks up what other processes did since our last critical section
+        private void refresh() throws IOException {
+            long current = readGeneration();
+            if (current != generation) {
+                // Compacted elsewhere: our channel and snapshot still point at the replaced files
+                channel.close();
+                openChannel();
+                snapshot.close();
+                snapshot = BlockSnapshot.open(snapshotFileFor(file), SNAPSHOT_MAGIC);
+                generation = current;
+                durableLength = channel.size();
+            }
+            index.refresh();
+            bloom.refresh();
+            long covered = index.covered();
+            boolean reset = covered > channel.size();
+            if (reset) {
+                index.reset();
+                bloom.reset(PlayerBloom.MIN_CAPACITY);
+                covered = PlayerCodec.HEADER_SIZE;
+            }
+            // Normally a no-op; catches a record another process wrote but died before indexing
+            if (covered < channel.size()) catchUp(covered);
+            if ((reset && snapshot.records() > 0) || bloom.isOverfull()) rebuildBloom();
+        }
+
+        private void rebuildBloom() throws IOException {
+            bloom.reset((int) Math.min(Integer.MAX_VALUE, index.used() + snapshot.records()));
+            index.forEach((offset, size) -> {
+                ByteBuffer record = ByteBuffer.allocate(size);
+                channel.read(record, offset);
+                byte[] name = new byte[record.getShort(0) & 0xFFFF];
+                record.position(2);
+                record.get(name);
+                bloom.add(name);
+            });
+            forEachInSnapshot((name, record) -> bloom.add(name));
+        }
+
+        // Visits every snapshot record in username order, one inflated block at a time
+        private void forEachInSnapshot(SnapshotVisitor visitor) throws IOException {
+            for (int block = 0; block < snapshot.blocks(); block++) {
+                ByteBuffer in = snapshot.read(block);
+                while (in.hasRemaining()) {
+                    ByteBuffer record = nextSnapshotRecord(in);
+                    visitor.visit(nameOf(record), record);
+                }
+            }
+        }
+
+        // Slices off the record at the buffer's position and moves past it
+        private static ByteBuffer nextSnapshotRecord(ByteBuffer in) {
+            int size = PlayerCodec.recordSize(in.getShort(in.position()) & 0xFFFF);
+            ByteBuffer record = in.slice();
+            record.limit(size);
+            in.position(in.position() + size);
+            return record;
+        }
+
+        private Player findInSnapshot(byte[] name) throws IOException {
+            int block = snapshot.blockFor(name);
+            if (block < 0) return null;
+            ByteBuffer in = snapshot.read(block);
+            while (in.hasRemaining()) {
+                ByteBuffer record = nextSnapshotRecord(in);
+                int order = Arrays.compareUnsigned(nameOf(record), name);
+                if (order == 0) return PlayerCodec.readRecord(record, PlayerCodec.VERSION);
+                if (order > 0) break;
+            }
+            return null;
+        }
+
+        // Replays the records written after the index was last updated; the tail from the first torn
+        // or damaged record on (crash mid-append) is cut off
+        private void catchUp(long from) throws IOException {
+            ByteBuffer in = ByteBuffer.allocate((int) (channel.size() - from));
+            while (in.hasRemaining() && channel.read(in, from + in.position()) >= 0) {}
+            in.flip();
+            while (in.remaining() >= 2) {
+                int start = in.position();
+                int nameLength = in.getShort(start) & 0xFFFF;
+                int size = PlayerCodec.recordSize(nameLength);
+                if (in.remaining() < size || !PlayerCodec.isIntact(in, start, size)) break;
+                byte[] name = new byte[nameLength];
+                in.position(start + 2);
+                in.get(name);
+                if (index.put(name, from + start, size, names)) bloom.add(name);
+                in.position(start + size);
+            }
+            long end = from + in.position();
+            if (end < channel.size()) {
+                channel.truncate(end);
+                channel.force(true);
+            }
+            index.setCovered(end);
+        }
+
+        // Encoded username of a record buffer that starts at index 0
+        private static byte[] nameOf(ByteBuffer record) {
+            byte[] name = new byte[record.getShort(0) & 0xFFFF];
+            ByteBuffer in = record.duplicate();
+            in.position(2);
+            in.get(name);
+            return name;
+        }
+
+        private boolean nameMatches(long offset, byte[] name) throws IOException {
+            ByteBuffer stored = ByteBuffer.allocate(2 + name.length);
+            channel.read(stored, offset);
+            if ((stored.getShort(0) & 0xFFFF) != name.length) return false;
+            for (int i = 0; i < name.length; i++) {
+                if (stored.get(2 + i) != name[i]) return false;
             }
             return true;
         }
 
-        public void complete(boolean correct, double timeTaken) {
-            this.correct = correct;
-            this.timeTaken = timeTaken;
+        private Player readAt(long offset) throws IOException {
+            ByteBuffer length = ByteBuffer.allocate(2);
+            channel.read(length, offset);
+            ByteBuffer record = ByteBuffer.allocate(PlayerCodec.recordSize(length.getShort(0) & 0xFFFF));
+            channel.read(record, offset);
+            record.flip();
+            return PlayerCodec.readRecord(record, PlayerCodec.VERSION);
+        }
+
+        /**
+         * Writes the record to the OS as the version after p's, and stamps that version on p. Fails with
+         * StaleProfileException if the stored profile is no longer the version p was based on. The
+         * record is only durable once a later sync() returns.
+         */
+        public synchronized void append(Player p) throws IOException {
+            byte[] name = p.getUsername().getBytes(StandardCharsets.UTF_8);
+            locked(() -> {
+                long current = index.find(name, names);
+                Player stored = current >= 0 ? readAt(current) : bloom.mightContain(name) ? findInSnapshot(name) : null;
+                if (stored != null && stored.getVersion() != p.getVersion()) {
+                    throw new StaleProfileException(Collections.singletonList(p.getUsername()));
+                }
+                Player next = p.copy();
+                next.setVersion(p.getVersion() + 1);
+                ByteBuffer record = PlayerCodec.encodeRecord(next);
+                long offset = channel.size();
+                int size = record.remaining();
+                while (record.hasRemaining()) channel.write(record, offset + record.position());
+                if (index.put(name, offset, size, names)) bloom.add(name);
+                index.setCovered(offset + size);
+                p.setVersion(next.getVersion());
+                return null;
+            });
+        }
+
+        /** Blocks until everything appended so far is on disk; callers arriving during an fsync share the next one. */
+        public void sync() throws IOException {
+            long target;
+            synchronized (this) { target = channel.size(); }
+            synchronized (syncLock) {
+                if (durableLength >= target) return;
+                if (GROUP_COMMIT_MS > 0) {
+                    try {
+                        Thread.sleep(GROUP_COMMIT_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                FileChannel current;
+                long end;
+                synchronized (this) {
+                    current = channel;
+                    end = channel.size();
+                }
+                current.force(false);
+                durableLength = end;
+            }
+        }
+
+        public synchronized Player find(String username) throws IOException {
+            byte[] name = username.getBytes(StandardCharsets.UTF_8);
+            return locked(() -> {
+                if (!bloom.mightContain(name)) return null;
+                long offset = index.find(name, names);
+                return offset < 0 ? findInSnapshot(name) : readAt(offset);
+            });
         }
 
-        public int calculateScore() {
-            if (!correct) return 0;
-            return (timeTaken < 5.0) ? 150 : 100;
+        public synchronized int size() throws IOException {
+            return locked(() -> {
+                int[] count = {index.used()};
+                forEachInSnapshot((name, record) -> {
+                    if (index.find(name, names) < 0) count[0]++;
+                });
+                return count[0];
+            });
         }
-        public String getDrinkName() { return drinkName; }
-        public List<String> getIngredients() { return ingredients; }
-    }
 
-    static class GameStatistics implements Serializable {
-        private static final long serialVersionUID = 1L;
-        public void resetDaily() {}
-    }
+        /** Latest record of every player in the store. */
+        public synchronized List<Player> readAll() throws IOException {
+            return locked(() -> {
+                Map<String, Player> latest = new LinkedHashMap<>();
+                forEachInSnapshot((name, record) -> {
+                    Player p = PlayerCodec.readRecord(record, PlayerCodec.VERSION);
+                    latest.put(p.getUsername(), p);
+                });
+                index.forEach((offset, size) -> {
+                    Player p = readAt(offset);
+                    latest.put(p.getUsername(), p);
+                });
+                return new ArrayList<>(latest.values());
+            });
+        }
 
-    static class AchievementTracker {
-        private List<String> unlocked = new ArrayList<>();
-        public void checkAchievements(Player p) {
-            if (p.getTotalScore() > 1000 && !unlocked.contains("High Roller")) unlocked.add("High Roller");
+        public synchronized boolean needsCompaction() throws IOException {
+            return locked(() -> {
+                long fileBytes = channel.size();
+                long deadBytes = fileBytes - PlayerCodec.HEADER_SIZE - index.liveBytes();
+                // Also merge once the live log rivals the snapshot, so the unsorted tail stays short and
+                // each record is rewritten only a few times as the snapshot doubles
+                return fileBytes >= MIN_COMPACT_BYTES && (deadBytes >= fileBytes / 2 || index.liveBytes() >= snapshot.rawBytes());
+            });
         }
-        public List<String> getAchievements() { return unlocked; }
-    }
 
-    static class Leaderboard {
-        private Map<String, Integer> scores = new HashMap<>();
-        public Leaderboard(DataManager dm) { try { scores = dm.loadLeaderboard(); } catch(Exception e){} }
-        public void addEntry(String name, int score) { scores.put(name, score); }
-        public List<Map.Entry<String, Integer>> getEntries() {
-            List<Map.Entry<String, Integer>> list = new ArrayList<>(scores.entrySet());
-            list.sort((a, b) -> b.getValue().compareTo(a.getValue()));
-            return list;
+        /** Merges the latest record of each player into a new snapshot, then swaps in an empty log. */
+        public void compact() throws IOException {
+            synchronized (syncLock) {
+                synchronized (this) {
+                    locked(() -> {
+                        List<ByteBuffer> recent = new ArrayList<>(index.used());
+                        index.forEach((offset, size) -> {
+                            ByteBuffer record = ByteBuffer.allocate(size);
+                            channel.read(record, offset);
+                            record.flip();
+                            recent.add(record);
+                        });
+                        recent.sort((a, b) -> Arrays.compareUnsigned(nameOf(a), nameOf(b)));
+                        File snapshotFile = snapshotFileFor(file);
+                        File snapshotTemp = AtomicFiles.prepare(snapshotFile, stream -> {
+                            BlockSnapshot.Writer out = new BlockSnapshot.Writer(stream, SNAPSHOT_MAGIC);
+                            int[] next = {0};
+                            // Both sides are in username order; a log record replaces the snapshot's copy
+                            forEachInSnapshot((name, record) -> {
+                                int order = 1;
+                                while (next[0] < recent.size() && (order = Arrays.compareUnsigned(nameOf(recent.get(next[0])), name)) < 0) {
+                                    out.add(nameOf(recent.get(next[0])), recent.get(next[0]++));
+                                }
+                                if (order == 0) out.add(name, recent.get(next[0]++));
+                                else out.add(name, record);
+                            });
+                            while (next[0] < recent.size()) out.add(nameOf(recent.get(next[0])), recent.get(next[0]++));
+                            out.finish();
+                        });
+                        File logTemp = AtomicFiles.prepare(file, stream -> {
+                            DataOutputStream out = new DataOutputStream(stream);
+                            PlayerCodec.writeHeader(out);
+                            out.flush();
+                        });
+                        // The snapshot goes first: a crash between the two swaps leaves records in both,
+                        // and the log's copies are the same versions. The index is emptied before either.
+                        index.reset();
+                        channel.close();
+                        snapshot.close();
+                        AtomicFiles.commit(snapshotTemp, snapshotFile);
+                        AtomicFiles.commit(logTemp, file);
+                        openChannel();
+                        snapshot = BlockSnapshot.open(snapshotFile, SNAPSHOT_MAGIC);
+                        catchUp(PlayerCodec.HEADER_SIZE);
+                        rebuildBloom();
+                        durableLength = channel.size();
+                        generation++;
+                        lockChannel.write(ByteBuffer.allocate(8).putLong(0, generation), 0);
+                        return null;
+                    });
+                }
+            }
+        }
+
+        @Override
+        @SuppressWarnings("try")
+        public void close() throws IOException {
+            sync();
+            synchronized (this) {
+                try (FileLock mutex = acquireMutex()) {
+                    presence.release();
+                    FileLock last = lockChannel.tryLock(PRESENCE, 1, false);
+                    bloom.close();
+                    snapshot.close();
+                    if (last != null) {
+                        index.markClean();
+                        last.release();
+                    }
+                    channel.close();
+                    index.close();
+                }
+                lockChannel.close();
+            }
         }
-        public Map<String, Integer> getScoresMap() { return scores; }
     }
 
-    // ==========================================
-    //               VIEW LAYER
-    // ==========================================
+    /** A save was based on an older version of the profile than the one now stored, e.g. by another game. */
+    static class StaleProfileException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final List<String> usernames;
 
-    static class UserInterface {
-        private Scanner scanner = new Scanner(System.in);
-        private RenderSystem renderer = new RenderSystem();
+        public StaleProfileException(List<String> usernames) {
+            super("Profile changed by another game: " + String.join(", ", usernames));
+            this.usernames = usernames;
+        }
 
-        public int showMainMenu() {
-            List<String> content = new ArrayList<>();
-            content.add("");
-            content.add("BARISTA SIMULATOR");
-            content.add("");
-            content.add("1. Start New Game");
-            content.add("2. Login / Register");
-            content.add("3. View Statistics");
-            content.add("4. Tutorial");
-            content.add("5. Leaderboard");
-            content.add("6. Achievements");
-            content.add("7. Credits");
-            content.add("8. Exit");
-            content.add("");
-            
-            renderer.drawFrame(content, "Select an option [1-8]");
-            return getNumericInput(1, 8);
+        public List<String> getUsernames() { return usernames; }
+    }
+
+    /**
+     * On-disk hash index from username to the offset of that player's latest log record, kept beside
+     * the log and read through a MappedByteBuffer, so a login touches a few pages and never decodes
+     * other players.
+     *
+     * Header: magic "BIDX" (int), version (short), dirty flag (short), slot count, used slots (ints),
+     *         log bytes covered, live record bytes (longs).
+     * Slot:   record offset (long, 0 = empty), username hash (int), record size (int).
+     *
+     * Open addressing with linear probing over a power-of-two slot count that doubles past 70% load.
+     * A hash match is confirmed against the username stored in the log, so collisions only cost a read.
+     * The dirty flag is set while any process has the index open and cleared by the last one to close
+     * it, so an index left behind by a crash, whose slots may point at records that never reached the
+     * disk, is rebuilt from the log. Processes sharing the file see each other's updates through the
+     * shared mapping; refresh() remaps after another one has grown the table.
+     */
+    static class PlayerIndex implements Closeable {
+        static final int MAGIC = 0x42494458; // "BIDX"
+        static final short VERSION = 1;
+        static final int HEADER_SIZE = 32;
+        static final int SLOT_SIZE = 16;
+        private static final int MIN_SLOTS = 1024;
+        private static final float MAX_LOAD = 0.7f;
+        private static final int DIRTY = 6, SLOT_COUNT = 8, USED = 12, COVERED = 16, LIVE_BYTES = 24;
+
+        /** Confirms that the log record at an offset belongs to the given UTF-8 username. */
+        interface RecordNames {
+            boolean matches(long offset, byte[] name) throws IOException;
         }
-        
-        public int showLoginMenu() {
-            List<String> content = Arrays.asList(
-                "",
-                "USER PROFILE",
-                "",
-                "1. Login",
-                "2. Register",
-                ""
-            );
-            renderer.drawFrame(content, "Select Option [1-2]");
-            return getNumericInput(1, 2);
+
+        interface SlotVisitor {
+            void visit(long offset, int size) throws IOException;
         }
 
-        // Note: Customer Interaction handled directly in GameManager to access logic variables easily
-        // for input loops
+        private final FileChannel channel;
+        private MappedByteBuffer map;
+        private int slotCount;
+        private boolean valid;
 
-        public void showOrderResult(boolean success, Order o) {
-            List<String> content = new ArrayList<>();
-            content.add(success ? "ORDER SUCCESS!" : "ORDER FAILED!");
-            content.add("");
-            if(success) {
-                content.add("Score Earned: " + o.calculateScore());
-                content.add("Customer is happy!");
+        private PlayerIndex(FileChannel channel) { this.channel = channel; }
+
+        /** The index file for a player log: barista_players.dat -> barista_players.idx. */
+        public static File fileFor(File log) { return PlayerLog.siblingOf(log, ".idx"); }
+
+        /** Maps the index, creating it if missing; a new or damaged one starts empty and !isValid(). */
+        public static PlayerIndex open(File file) throws IOException {
+            PlayerIndex index = new PlayerIndex(FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            index.valid = index.checkHeader();
+            if (index.valid) {
+                index.map(index.slotCount);
             } else {
-                content.add("You missed an ingredient.");
-                content.add("Customer left angry.");
+                index.channel.truncate(0);
+                index.map(MIN_SLOTS);
+                index.reset();
             }
-            content.add("");
-            renderer.drawFrame(content, "Press Enter to continue...");
-            scanner.nextLine();
+            return index;
         }
 
-        public void showDailySummary(int day, int made, int missed, int score) {
-            List<String> content = Arrays.asList(
-                "DAY " + day + " COMPLETE",
-                "",
-                "Orders Made: " + made,
-                "Orders Missed: " + missed,
-                "Total Score: " + score,
-                ""
-            );
-            renderer.drawFrame(content, "Press Enter for next day...");
-            scanner.nextLine();
+        private boolean checkHeader() throws IOException {
+            long size = channel.size();
+            if (size < HEADER_SIZE) return false;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {}
+            slotCount = header.getInt(SLOT_COUNT);
+            return header.getInt(0) == MAGIC && header.getShort(4) == VERSION
+                    && slotCount >= MIN_SLOTS && Integer.bitCount(slotCount) == 1
+                    && size == HEADER_SIZE + (long) slotCount * SLOT_SIZE;
         }
 
-        public void showMessage(String msg) {
-            renderer.drawFrame(Arrays.asList("", msg, ""), "Press Enter...");
-            scanner.nextLine();
+        // Mapping past the end of the file extends it, so growing never needs to unmap the old region
+        private void map(int slots) throws IOException {
+            slotCount = slots;
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
         }
-        
-        public void showStatistics(Player p) {
-            renderer.drawFrame(Arrays.asList("PLAYER STATS", "Name: " + p.getUsername(), "Score: " + p.getTotalScore(), ""), "Press Enter...");
-            scanner.nextLine();
+
+        public boolean isValid() { return valid; }
+        public boolean isDirty() { return map.getShort(DIRTY) != 0; }
+        public long covered() { return map.getLong(COVERED); }
+        public void setCovered(long length) { map.putLong(COVERED, length); }
+        public int used() { return map.getInt(USED); }
+        public long liveBytes() { return map.getLong(LIVE_BYTES); }
+
+        public void markDirty() {
+            map.putShort(DIRTY, (short) 1);
+            map.force();
         }
-        
-        public void showTutorial() {
-            renderer.drawFrame(Arrays.asList("TUTORIAL", "1. Read Order", "2. Type ingredients separated by commas", "3. Press Enter", ""), "Press Enter...");
-            scanner.nextLine();
+
+        /** Flushes every slot, then records that the index matches the log. */
+        public void markClean() {
+            map.force();
+            map.putShort(DIRTY, (short) 0);
+            map.force();
         }
-        
-        public void showLeaderboard(List<Map.Entry<String, Integer>> entries) {
-            List<String> content = new ArrayList<>();
-            content.add("LEADERBOARD");
-            content.add("");
-            for(var e : entries) content.add(e.getKey() + " : " + e.getValue());
-            content.add("");
-            renderer.drawFrame(content, "Press Enter...");
-            scanner.nextLine();
+
+        /** Remaps if another process has grown the table since this one last looked. */
+        public void refresh() throws IOException {
+            int current = map.getInt(SLOT_COUNT);
+            if (current != slotCount) map(current);
         }
-        
-        public void showAchievements(List<String> list) {
-            List<String> content = new ArrayList<>();
-            content.add("ACHIEVEMENTS");
-            for(String s : list) content.add("* " + s);
-            content.add("");
-            renderer.drawFrame(content, "Press Enter...");
-            scanner.nextLine();
+
+        /** Empties every slot, ready for the log to be replayed into it. */
+        public void reset() {
+            map.putInt(0, MAGIC).putShort(4, VERSION).putShort(DIRTY, (short) 1).putInt(SLOT_COUNT, slotCount);
+            map.putInt(USED, 0).putLong(COVERED, 0).putLong(LIVE_BYTES, 0);
+            for (int i = 0; i < slotCount; i++) map.putLong(slot(i), 0);
         }
-        
-        public void showCredits() { showMessage("Created by Java Barista Team."); }
-        public void showExitMessage() { showMessage("Thanks for playing!"); }
-        
-        public String getTextInput(String prompt) {
-            // Draw an empty frame with just the prompt at the bottom
-            renderer.drawFrame(Arrays.asList(""), prompt);
-            return scanner.nextLine();
+
+        /** Log offset of the user's latest record, or -1. */
+        public long find(byte[] name, RecordNames names) throws IOException {
+            int hash = hash(name);
+            for (int i = hash & (slotCount - 1); ; i = (i + 1) & (slotCount - 1)) {
+                long offset = map.getLong(slot(i));
+                if (offset == 0) return -1;
+                if (map.getInt(slot(i) + 8) == hash && names.matches(offset, name)) return offset;
+            }
         }
 
-        public int getNumericInput(int min, int max) {
-            while (true) {
-                try {
-                    String in = scanner.nextLine();
-                    int i = Integer.parseInt(in);
-                    if (i >= min && i <= max) return i;
-                } catch (Exception e) {}
-                // If invalid, just wait for next input (or you could redraw)
-                System.out.print("> ");
+        /** Points the name at a new record; true if the name was not in the index before. */
+        public boolean put(byte[] name, long offset, int size, RecordNames names) throws IOException {
+            if (used() + 1 > slotCount * MAX_LOAD) grow();
+            int hash = hash(name);
+            int i = hash & (slotCount - 1);
+            for (long existing; (existing = map.getLong(slot(i))) != 0; i = (i + 1) & (slotCount - 1)) {
+                if (map.getInt(slot(i) + 8) == hash && names.matches(existing, name)) {
+                    map.putLong(LIVE_BYTES, liveBytes() - map.getInt(slot(i) + 12));
+                    break;
+                }
             }
+            boolean added = map.getLong(slot(i)) == 0;
+            if (added) map.putInt(USED, used() + 1);
+            map.putLong(slot(i), offset).putInt(slot(i) + 8, hash).putInt(slot(i) + 12, size);
+            map.putLong(LIVE_BYTES, liveBytes() + size);
+            return added;
         }
-    }
 
-    static class AnimationManager {
-        private RenderSystem renderer = new RenderSystem();
-        private UserInterface ui;
-        
-        public AnimationManager(UserInterface ui) { this.ui = ui; }
-        
-        public void playIntroCutscene() {
-            List<String> frame = Arrays.asList(
-                "   ___           _     _         ",
-                "  | _ ) __ _ _ _(_)__| |_ __ _   ",
-                "  | _ \\/ _` | '_| (_-<  _/ _` |  ",
-                "  |___/\\__,_|_| |_/__/\\__\\__,_|  ",
-                "",
-                "The Ultimate Barista Simulator",
-                "",
-                "Loading..."
-            );
-            renderer.drawFrame(frame, "");
-            delay(2000);
+        public void forEach(SlotVisitor visitor) throws IOException {
+            for (int i = 0; i < slotCount; i++) {
+                long offset = map.getLong(slot(i));
+                if (offset != 0) visitor.visit(offset, map.getInt(slot(i) + 12));
+            }
         }
-        
-        public void showCustomerArrival(Customer c) {
-            List<String> frame = Arrays.asList(
-                "The door opens...",
-                "",
-                "      ( ^_^ )      ",
-                "       / | \\       ",
-                "        / \\        ",
-                "",
-                c.getName() + " walks in."
-            );
-            renderer.drawFrame(frame, "");
-            delay(1000);
+
+        // Doubles the table in place; entries are already distinct, so reinserting needs only their hashes
+        private void grow() throws IOException {
+            int count = used();
+            long[] offsets = new long[count];
+            int[] hashes = new int[count];
+            int[] sizes = new int[count];
+            int n = 0;
+            for (int i = 0; i < slotCount && n < count; i++) {
+                long offset = map.getLong(slot(i));
+                if (offset == 0) continue;
+                offsets[n] = offset;
+                hashes[n] = map.getInt(slot(i) + 8);
+                sizes[n++] = map.getInt(slot(i) + 12);
+            }
+            map(slotCount * 2);
+            map.putInt(SLOT_COUNT, slotCount);
+            for (int i = 0; i < slotCount; i++) map.putLong(slot(i), 0);
+            for (int k = 0; k < n; k++) {
+                int i = hashes[k] & (slotCount - 1);
+                while (map.getLong(slot(i)) != 0) i = (i + 1) & (slotCount - 1);
+                map.putLong(slot(i), offsets[k]).putInt(slot(i) + 8, hashes[k]).putInt(slot(i) + 12, sizes[k]);
+            }
         }
-        
-        public void showHappyCustomer() {
-            List<String> frame = Arrays.asList(
-                "",
-                "   \\(^o^)/   ",
-                "Thank you!!",
-                ""
-            );
-            renderer.drawFrame(frame, "");
-            delay(1000);
+
+        private static int slot(int i) { return HEADER_SIZE + i * SLOT_SIZE; }
+
+        // FNV-1a over the UTF-8 bytes, so the layout does not depend on String.hashCode
+        static int hash(byte[] name) {
+            int h = 0x811C9DC5;
+            for (byte b : name) h = (h ^ (b & 0xFF)) * 0x01000193;
+            return h ^ (h >>> 16);
         }
-        
-        public void showUnhappyCustomer() {
-            List<String> frame = Arrays.asList(
-                "",
-                "   (>_<)   ",
-                "This isn't what I ordered!",
-                ""
-            );
-            renderer.drawFrame(frame, "");
-            delay(1000);
+
+        @Override
+        public void close() throws IOException {
+            map.force();
+            channel.close();
         }
-        
-        public void playDayTransition(int day) {
-            renderer.drawFrame(Arrays.asList("", "", "DAY " + day, "", "The sun rises..."), "");
-            delay(1500);
+    }
+
+    /**
+     * Bloom filter of every username in a player log, kept beside it and mapped like the PlayerIndex,
+     * so a login for a name that was never saved (a typo, or a new player checking) is answered
+     * without probing the index or reading the log.
+     *
+     * Header: magic "BBLM" (int), version (short), unused (short), bit count, hash count,
+     *         names added, capacity (ints); then the bits.
+     *
+     * Sized for twice the names it holds when built, at -Dbarista.bloomFpp but never past
+     * -Dbarista.bloomMaxKb, so the false positive rate degrades instead of memory growing without
+     * bound. Names are only ever added; once more than its capacity have been added the log
+     * rebuilds it at a size that fits, and compaction always rebuilds it from the live names.
+     */
+    static class PlayerBloom implements Closeable {
+        static final int MAGIC = 0x42424C4D; // "BBLM"
+        static final short VERSION = 1;
+        static final int HEADER_SIZE = 24;
+        static final int MIN_CAPACITY = 1024;
+        private static final int BITS = 8, HASHES = 12, ADDED = 16, CAPACITY = 20;
+        // -Dbarista.bloomFpp sets the target false positive rate, -Dbarista.bloomMaxKb the size cap per shard
+        private static final double FPP = Double.parseDouble(System.getProperty("barista.bloomFpp", "0.01"));
+        private static final long MAX_BITS = Long.getLong("barista.bloomMaxKb", 1024) * 1024 * 8;
+
+        private final FileChannel channel;
+        private MappedByteBuffer map;
+        private long mappedBits;
+        private boolean valid;
+
+        private PlayerBloom(FileChannel channel) { this.channel = channel; }
+
+        /** The filter file for a player log: barista_players.dat -> barista_players.bloom. */
+        public static File fileFor(File log) { return PlayerLog.siblingOf(log, ".bloom"); }
+
+        /** Maps the filter, creating it if missing; a new or damaged one starts empty and !isValid(). */
+        public static PlayerBloom open(File file) throws IOException {
+            PlayerBloom bloom = new PlayerBloom(FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            long size = bloom.channel.size();
+            if (size >= HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (header.hasRemaining() && bloom.channel.read(header, header.position()) >= 0) {}
+                long bits = header.getInt(BITS) & 0xFFFFFFFFL;
+                bloom.valid = header.getInt(0) == MAGIC && header.getShort(4) == VERSION && bits > 0 && bits % 64 == 0
+                        && header.getInt(HASHES) > 0 && size >= HEADER_SIZE + bits / 8;
+                if (bloom.valid) bloom.map((size - HEADER_SIZE) * 8);
+            }
+            if (!bloom.valid) {
+                bloom.channel.truncate(0);
+                bloom.reset(MIN_CAPACITY);
+            }
+            return bloom;
         }
-        
-        public void playEndingCutscene(int stars) {
-            renderer.drawFrame(Arrays.asList("GAME OVER", "", "Rating: " + stars + " Stars", "", "Thank you for playing!"), "");
-            delay(2000);
+
+        // The file only grows, so other processes' mappings of it never lose their backing
+        private void map(long bits) throws IOException {
+            mappedBits = bits;
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + bits / 8);
         }
 
-        private void delay(int ms) { try { Thread.sleep(ms); } catch(Exception e) {} }
-    }
+        public boolean isValid() { return valid; }
 
-    static class StoryManager {
-        private RenderSystem renderer = new RenderSystem();
-        private UserInterface ui;
-        
-        public StoryManager(UserInterface ui) { this.ui = ui; }
+        /** More names added than it was sized for, so its false positive rate is past the target. */
+        public boolean isOverfull() { return map.getInt(ADDED) > map.getInt(CAPACITY); }
 
-        public void showGameStartCutscene(String name) {
-            List<String> content = Arrays.asList(
-                "Welcome, " + name + ".",
-                "You have just opened your first shop.",
-                "The rent is due in 7 days.",
-                "Make the best tea in the city.",
-                ""
-            );
-            renderer.drawFrame(content, "Press Enter to open shop...");
-            ui.scanner.nextLine();
+        /** Clears the filter and resizes it for the given number of names. */
+        public void reset(int names) throws IOException {
+            int capacity = Math.max(MIN_CAPACITY, names * 2);
+            long bits = (long) Math.ceil(-capacity * Math.log(FPP) / (Math.log(2) * Math.log(2)));
+            bits = Math.max(64, Math.min(Math.min(bits, MAX_BITS), Integer.MAX_VALUE) / 64 * 64);
+            int hashes = (int) Math.max(1, Math.round((double) bits / capacity * Math.log(2)));
+            if (map == null || bits > mappedBits) map(bits);
+            for (int i = 0; i < bits / 8; i += 8) map.putLong(HEADER_SIZE + i, 0);
+            map.putInt(0, MAGIC).putShort(4, VERSION).putShort(6, (short) 0);
+            map.putInt(BITS, (int) bits).putInt(HASHES, hashes).putInt(ADDED, 0).putInt(CAPACITY, capacity);
         }
-        public void showDayIntro(int day) {
-            // Handled by AnimationManager
+
+        /** Remaps if another process has grown the filter since this one last looked. */
+        public void refresh() throws IOException {
+            long bits = map.getInt(BITS) & 0xFFFFFFFFL;
+            if (bits > mappedBits) map(bits);
+        }
+
+        public void add(byte[] name) {
+            long bits = map.getInt(BITS) & 0xFFFFFFFFL;
+            int h1 = PlayerIndex.hash(name), h2 = secondHash(name);
+            for (int i = 0; i < map.getInt(HASHES); i++) {
+                long bit = Math.floorMod((h1 & 0xFFFFFFFFL) + (long) i * h2, bits);
+                int word = HEADER_SIZE + (int) (bit >>> 6) * 8;
+                map.putLong(word, map.getLong(word) | (1L << bit));
+            }
+            map.putInt(ADDED, map.getInt(ADDED) + 1);
+        }
+
+        /** False means the name was certainly never added. */
+        public boolean mightContain(byte[] name) {
+            long bits = map.getInt(BITS) & 0xFFFFFFFFL;
+            int h1 = PlayerIndex.hash(name), h2 = secondHash(name);
+            for (int i = 0; i < map.getInt(HASHES); i++) {
+                long bit = Math.floorMod((h1 & 0xFFFFFFFFL) + (long) i * h2, bits);
+                if ((map.getLong(HEADER_SIZE + (int) (bit >>> 6) * 8) & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+
+        // Independent of PlayerIndex.hash, as double hashing needs; forced odd so every step moves
+        private static int secondHash(byte[] name) {
+            int h = 0x9747B28C;
+            for (byte b : name) {
+                h = (h ^ (b & 0xFF)) * 0x5BD1E995;
+                h ^= h >>> 15;
+            }
+            return h | 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            map.force();
+            channel.close();
         }
     }
 
     // ==========================================
-    //               DATA LAYER
+    //               TOOLS
     // ==========================================
 
-    static class DataManager {
-        private static final String PLAYER_FILE = "barista_players.dat";
-        private static final String LEADERBOARD_FILE = "barista_leaderboard.dat";
+    /** Offline maintenance commands, run as `java BaristaGame <command> [args]` while no game is running. */
+    static class StorageTools {
+        public static void run(String[] args) throws Exception {
+            switch (args[0]) {
+                case "rebuild-index":
+                    if (args.length > 1) {
+                        rebuildIndex(new File(args[1]));
+                    } else {
+                        for (File shard : PlayerShards.files(new File(DataManager.PLAYER_FILE))) {
+                            if (shard.exists()) rebuildIndex(shard);
+                        }
+                    }
+                    break;
+                case "reshard":
+                    reshard(args.length > 1 ? args[1] : "");
+                    break;
+                case "leaderboard":
+                    printLeaderboard(intArg(args, 1, 1), intArg(args, 2, 10));
+                    break;
+                case "bench-leaderboard":
+                    benchLeaderboard(intArg(args, 1, 64), intArg(args, 2, 1000));
+                    break;
+                case "stress-saves":
+                    stressSaves(intArg(args, 1, 4), intArg(args, 2, 4), intArg(args, 3, 100), intArg(args, 4, 1));
+                    break;
+                case "stress-worker":
+                    stressWorker(intArg(args, 1, 0), intArg(args, 2, 1), intArg(args, 3, 1));
+                    break;
+                default:
+                    System.err.println("Unknown command: " + args[0]);
+                    System.err.println("Usage: java BaristaGame rebuild-index [player file]");
+                    System.err.println("       java BaristaGame reshard <shard count>");
+                    System.err.println("       java BaristaGame leaderboard [first rank] [count]");
+                    System.err.println("       java BaristaGame bench-leaderboard [max threads] [millis per run]");
+                    System.err.println("       java BaristaGame stress-saves [processes] [threads] [saves] [shards]");
+            }
+        }
 
-        @SuppressWarnings("unchecked")
-        public Player loadPlayer(String username) {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(PLAYER_FILE))) {
-                Map<String, Player> map = (Map<String, Player>) ois.readObject();
-                return map.get(username);
-            } catch (Exception e) { return null; }
+        private static int intArg(String[] args, int i, int fallback) {
+            return args.length > i ? Integer.parseInt(args[i]) : fallback;
         }
 
-        @SuppressWarnings("unchecked")
-        public void savePlayer(Player p) throws IOException {
-            Map<String, Player> map = new HashMap<>();
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(PLAYER_FILE))) {
-                map = (Map<String, Player>) ois.readObject();
-            } catch (Exception e) {}
-            map.put(p.getUsername(), p);
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(PLAYER_FILE))) {
-                oos.writeObject(map);
+        static void reshard(String countArg) throws IOException {
+            int count;
+            try {
+                count = Integer.parseInt(countArg);
+            } catch (NumberFormatException e) {
+                count = 0;
             }
+            if (count < 1) {
+                System.err.println("Shard count must be a positive number, got '" + countArg + "'");
+                return;
+            }
+            File base = new File(DataManager.PLAYER_FILE);
+            int old = Math.max(1, PlayerShards.readManifest(base));
+            long start = System.nanoTime();
+            int moved = PlayerShards.reshard(base, count);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            System.out.println(old == count ? "Player store already has " + count + " shards"
+                    : "Moved " + moved + " players from " + old + " to " + count + " shards in " + millis + " ms");
         }
 
-        @SuppressWarnings("unchecked")
-        public Map<String, Integer> loadLeaderboard() {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(LEADERBOARD_FILE))) {
-                return (Map<String, Integer>) ois.readObject();
-            } catch (Exception e) { return new HashMap<>(); }
+        /** Builds the player index from scratch, converting a legacy serialized file to the log format first. */
+        static void rebuildIndex(File playerFile) throws IOException {
+            if (!playerFile.exists()) throw new FileNotFoundException(playerFile.getPath());
+            if (PlayerCodec.isLegacy(playerFile)) {
+                PlayerCodec.migrateLegacy(playerFile);
+                System.out.println("Converted legacy " + playerFile + " (original kept as " + playerFile + ".bak)");
+            }
+            Files.deleteIfExists(PlayerIndex.fileFor(playerFile).toPath());
+            Files.deleteIfExists(PlayerBloom.fileFor(playerFile).toPath());
+            long start = System.nanoTime();
+            try (PlayerLog log = PlayerLog.open(playerFile)) {
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                System.out.println("Indexed " + log.size() + " players into " + PlayerIndex.fileFor(playerFile) + " in " + millis + " ms");
+            }
+        }
+
+        /** Prints ranks first..first+count-1 straight from the leaderboard file, inflating only the blocks they are in. */
+        static void printLeaderboard(int first, int count) throws IOException {
+            File file = new File(DataManager.LEADERBOARD_FILE);
+            if (!file.exists()) throw new FileNotFoundException(file.getPath());
+            int rank = Math.max(1, first);
+            for (Map.Entry<String, Integer> entry : LeaderboardCodec.readRange(file, rank - 1, count)) {
+                System.out.println(rank++ + ". " + entry.getKey() + " : " + entry.getValue());
+            }
+        }
+
+        /**
+         * Measures leaderboard throughput under contention: 1, 2, 4 ... maxThreads threads each submit
+         * scores for random players out of 100,000, reading the top page every tenth operation. Each
+         * thread count runs once with a single stripe, which behaves like one global lock, and once
+         * with the configured stripes.
+         */
+        static void benchLeaderboard(int maxThreads, int millis) throws Exception {
+            Map<String, Integer> seed = new HashMap<>();
+            for (int i = 0; i < BENCH_PLAYERS; i++) seed.put("player" + i, i % 10_000);
+            // Untimed run so the first row is not measuring the JIT
+            benchRun(seed, Leaderboard.STRIPES, 1, millis);
+            System.out.printf("%8s %16s %16s%n", "threads", "1 stripe ops/s", Leaderboard.STRIPES + " stripes ops/s");
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                System.out.printf("%8d %16.0f %16.0f%n", threads, benchRun(seed, 1, threads, millis), benchRun(seed, Leaderboard.STRIPES, threads, millis));
+            }
+        }
+
+        private static final int BENCH_PLAYERS = 100_000;
+
+        private static double benchRun(Map<String, Integer> seed, int stripes, int threads, int millis) throws Exception {
+            Leaderboard board = new Leaderboard(seed, stripes, Leaderboard.POLICY);
+            long deadline = System.nanoTime() + millis * 1_000_000L;
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<Long>> counts = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                counts.add(pool.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long ops = 0;
+                    while (System.nanoTime() < deadline) {
+                        if (ops % 10 == 9) board.getPage(0, UserInterface.LEADERBOARD_PAGE);
+                        else board.addEntry("player" + random.nextInt(BENCH_PLAYERS), random.nextInt(10_000));
+                        ops++;
+                    }
+                    return ops;
+                }));
+            }
+            long total = 0;
+            for (Future<Long> count : counts) total += count.get();
+            pool.shutdown();
+            return total * 1000.0 / millis;
+        }
+
+        private static final String STRESS_SHARED = "stress-shared";
+
+        /**
+         * Runs worker JVMs against one fresh store in a temp directory, each with several threads
+         * saving their own profile and a profile they all share, then checks that no save was lost:
+         * own profiles must never conflict, and shared saves that do are retried from a fresh load.
+         */
+        static void stressSaves(int processes, int threads, int saves, int shards) throws Exception {
+            Path dir = Files.createTempDirectory("barista-stress");
+            File base = new File(dir.toFile(), DataManager.PLAYER_FILE);
+            PlayerShards.open(base, shards).close();
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            StringJoiner classpath = new StringJoiner(File.pathSeparator);
+            for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+                classpath.add(new File(entry).getAbsolutePath());
+            }
+            long start = System.nanoTime();
+            List<Process> workers = new ArrayList<>();
+            for (int i = 0; i < processes; i++) {
+                List<String> command = new ArrayList<>(Arrays.asList(java, "-cp", classpath.toString()));
+                // Workers get the same -Dbarista.* options, e.g. a short compaction interval
+                for (String key : System.getProperties().stringPropertyNames()) {
+                    if (key.startsWith("barista.")) command.add("-D" + key + "=" + System.getProperty(key));
+                }
+                command.addAll(Arrays.asList("BaristaGame", "stress-worker", Integer.toString(i), Integer.toString(threads), Integer.toString(saves)));
+                workers.add(new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true).start());
+            }
+            boolean ok = true;
+            long conflicts = 0;
+            for (Process worker : workers) {
+                String output = new String(worker.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+                worker.waitFor();
+                String result = null;
+                for (String line : output.split("\\R")) {
+                    if (line.startsWith("conflicts ")) result = line;
+                }
+                if (result == null) {
+                    ok = false;
+                    System.err.println(output);
+                } else {
+                    conflicts += Long.parseLong(result.substring("conflicts ".length()).trim());
+                }
+            }
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            try (PlayerShards store = PlayerShards.open(base, 0)) {
+                for (int i = 0; i < processes; i++) {
+                    for (int t = 0; t < threads; t++) {
+                        String name = "stress-" + i + "-" + t;
+                        Player own = store.shardFor(name).find(name);
+                        if (own == null || own.getTotalScore() != saves) {
+                            ok = false;
+                            System.err.println(name + ": expected " + saves + ", found " + (own == null ? "nothing" : own.getTotalScore()));
+                        }
+                    }
+                }
+                Player shared = store.shardFor(STRESS_SHARED).find(STRESS_SHARED);
+                int expected = processes * threads * saves;
+                if (shared == null || shared.getTotalScore() != expected) {
+                    ok = false;
+                    System.err.println(STRESS_SHARED + ": expected " + expected + ", found " + (shared == null ? "nothing" : shared.getTotalScore()));
+                }
+            }
+            int total = processes * threads * saves * 2;
+            System.out.println(String.format("%s: %d saves from %d processes x %d threads over %d shards in %d ms, %d conflicts retried",
+                    ok ? "OK" : "FAILED", total, processes, threads, shards, millis, conflicts));
+            if (ok) {
+                for (File file : dir.toFile().listFiles()) file.delete();
+                dir.toFile().delete();
+            } else {
+                System.out.println("Store kept in " + dir);
+            }
         }
 
-        public void saveLeaderboard(Map<String, Integer> map) {
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(LEADERBOARD_FILE))) {
-                oos.writeObject(map);
-            } catch (Exception e) {}
+        static void stressWorker(int id, int threads, int saves) throws Exception {
+            DataManager data = new DataManager();
+            AtomicInteger conflicts = new AtomicInteger();
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String own = "stress-" + id + "-" + t;
+                done.add(pool.submit(() -> {
+                    for (int i = 0; i < saves; i++) {
+                        // Only this thread writes its own profile, so a conflict here means a lost update
+                        Player p = data.loadPlayer(own);
+                        if (p == null) p = new Player(own);
+                        p.addScore(1);
+                        data.savePlayer(p);
+                        while (true) {
+                            Player shared = data.loadPlayer(STRESS_SHARED);
+                            if (shared == null) shared = new Player(STRESS_SHARED);
+                            shared.addScore(1);
+                            try {
+                                data.savePlayer(shared);
+                                break;
+                            } catch (StaleProfileException e) {
+                                conflicts.incrementAndGet();
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            try {
+                for (Future<?> f : done) f.get();
+            } finally {
+                pool.shutdown();
+                data.close();
+            }
+            System.out.println("conflicts " + conflicts.get());
         }
     }
 }
\ No newline at end of file